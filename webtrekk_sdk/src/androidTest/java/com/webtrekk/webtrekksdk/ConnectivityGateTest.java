@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.ConnectivityGate;
+import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class ConnectivityGateTest extends AndroidTestCase {
+
+    public void testGateFollowsConnectionState() throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ConnectivityGate gate = new ConnectivityGate(getContext(), false, new Runnable() {
+            @Override
+            public void run() {
+                connected.countDown();
+            }
+        });
+        gate.start();
+        try {
+            final boolean online = !"offline".equals(HelperFunctions.getConnectionString(getContext()));
+            assertEquals(online, gate.canSend());
+            assertEquals(HelperFunctions.getConnectionString(getContext()), gate.getConnectionType());
+            if (online) {
+                // callback reports current network at once after registration
+                assertTrue(connected.await(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            gate.stop();
+        }
+    }
+
+    public void testRoamingIsDeferred() {
+        ConnectivityGate gate = new ConnectivityGate(getContext(), true, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        final boolean online = !"offline".equals(HelperFunctions.getConnectionString(getContext()));
+        assertEquals(online && !HelperFunctions.isRoaming(getContext()), gate.canSend());
+    }
+}
@@ -26,8 +26,16 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.webtrekk.webtrekksdk.Modules.Campaign;
+import com.webtrekk.webtrekksdk.Request.LaneRequestStorage;
+import com.webtrekk.webtrekksdk.Request.MemoryRequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestFactory;
+import com.webtrekk.webtrekksdk.Request.RequestStorage;
+import com.webtrekk.webtrekksdk.Request.RetryScheduler;
 import com.webtrekk.webtrekksdk.Request.TrackingRequest;
 import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
@@ -149,4 +157,101 @@ public class IntegrationTests extends AndroidTestCase {
         assertTrue(webtrekk.getRequestFactory().getRequestUrlStore().peek().contains("ba=test_product"));
         webtrekk.stopTracking();
     }
+
+    /**
+     * test request that gets app install goal is queued in priority lane
+     */
+
+    public void testInstallGoalIsQueuedInPriorityLane(){
+        (new File(getContext().getFilesDir(), "wt-pending-requests.json")).delete();
+        // open app install goal like on first start
+        HelperFunctions.getWebTrekkSharedPreference(getContext()).edit()
+                .remove("appinstallGoalProcessed").putBoolean("appinstallGoal", true).apply();
+
+        RequestFactory requestFactory = webtrekk.getRequestFactory();
+        LaneRequestStorage storage = new LaneRequestStorage(new MemoryRequestStorage(), new MemoryRequestStorage(), 4, 1);
+        requestFactory.setRequestUrlStore(storage);
+
+        requestFactory.addRequest(requestFactory.createTrackingRequest(new TrackingParameter()));
+        requestFactory.addRequest(requestFactory.createTrackingRequest(new TrackingParameter()));
+
+        RequestStorage priorityLane = storage.getLane(LaneRequestStorage.Lane.PRIORITY);
+        RequestStorage generalLane = storage.getLane(LaneRequestStorage.Lane.GENERAL);
+        assertEquals(1, priorityLane.size());
+        assertTrue(priorityLane.peek(), priorityLane.peek().contains("cb900=1"));
+        assertEquals(1, generalLane.size());
+        assertFalse(generalLane.peek(), generalLane.peek().contains("cb900=1"));
+        webtrekk.stopTracking();
+    }
+
+    /**
+     * test manual send isn't blocked by open retry circuit
+     */
+
+    public void testExplicitSendWhileCircuitIsOpen(){
+        RequestFactory requestFactory = webtrekk.getRequestFactory();
+        // no running send and no connectivity gate, so only retry circuit decides
+        requestFactory.stopSendURLProcess();
+        RequestStorage storage = new MemoryRequestStorage();
+        storage.addURL("http://localhost/test");
+        requestFactory.setRequestUrlStore(storage);
+
+        RetryScheduler retryScheduler = requestFactory.getRetryScheduler();
+        while (retryScheduler.getState() != RetryScheduler.State.OPEN) {
+            retryScheduler.onFailure();
+        }
+
+        assertFalse(requestFactory.onSendIntervalOver());
+        assertTrue(requestFactory.onSendIntervalOver(true));
+        assertEquals(RetryScheduler.State.HALF_OPEN, retryScheduler.getState());
+
+        requestFactory.stopSendURLProcess();
+        retryScheduler.onSuccess();
+        webtrekk.stopTracking();
+    }
+
+    /**
+     * test manual send doesn't wait on caller thread till storage is opened
+     */
+
+    public void testSendDoesNotWaitForStorage() throws InterruptedException {
+        final CountDownLatch opened = new CountDownLatch(1);
+        RequestStorage storage = new MemoryRequestStorage() {
+            @Override
+            public boolean isReady() {
+                return opened.getCount() == 0;
+            }
+
+            @Override
+            public int size() {
+                try {
+                    opened.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.size();
+            }
+        };
+        storage.addURL("https://localhost/123/wt?p=0");
+
+        RequestFactory requestFactory = webtrekk.getRequestFactory();
+        requestFactory.stopSendURLProcess();
+        requestFactory.setRequestUrlStore(storage);
+
+        // storage is opened later, so test doesn't hang if send waits for it
+        Executors.newSingleThreadScheduledExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                opened.countDown();
+            }
+        }, 2, TimeUnit.SECONDS);
+
+        final long start = System.currentTimeMillis();
+        assertTrue(requestFactory.onSendIntervalOver(true));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        opened.await();
+        requestFactory.stopSendURLProcess();
+        webtrekk.stopTracking();
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.LaneRequestStorage;
+import com.webtrekk.webtrekksdk.Request.MemoryRequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestProcessor;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Request.TrackingRequest.RequestType;
+
+import java.util.List;
+
+
+public class LaneRequestStorageTest extends AndroidTestCase {
+
+    private LaneRequestStorage mStorage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorage = new LaneRequestStorage(new MemoryRequestStorage(), new MemoryRequestStorage(), 4, 1);
+    }
+
+    private String sendNext() {
+        final String url = mStorage.peek();
+        mStorage.removeLastURL();
+        return url;
+    }
+
+    public void testLaneOfType() {
+        assertEquals(LaneRequestStorage.Lane.PRIORITY, LaneRequestStorage.Lane.of(RequestType.INSTALL));
+        assertEquals(LaneRequestStorage.Lane.PRIORITY, LaneRequestStorage.Lane.of(RequestType.CDB));
+        assertEquals(LaneRequestStorage.Lane.PRIORITY, LaneRequestStorage.Lane.of(RequestType.FATAL_EXCEPTION));
+        assertEquals(LaneRequestStorage.Lane.GENERAL, LaneRequestStorage.Lane.of(RequestType.ECXEPTION));
+        assertEquals(LaneRequestStorage.Lane.GENERAL, LaneRequestStorage.Lane.of(RequestType.GENERAL));
+    }
+
+    public void testPriorityRequestIsSentFirst() {
+        for (int i = 0; i < 1000; i++) {
+            mStorage.addURL("page" + i);
+        }
+        mStorage.addURL("install", RequestType.INSTALL);
+
+        assertEquals(1001, mStorage.size());
+        assertEquals("install", sendNext());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("page" + i, sendNext());
+        }
+        assertEquals(0, mStorage.size());
+        assertNull(mStorage.peek());
+    }
+
+    public void testWeightedFairOrder() {
+        for (int i = 0; i < 20; i++) {
+            mStorage.addURL("page" + i);
+            mStorage.addURL("cdb" + i, RequestType.CDB);
+        }
+
+        int pages = 0;
+        int cdbs = 0;
+        for (int i = 0; i < 25; i++) {
+            final String url = sendNext();
+            // order is kept within lane
+            if (url.startsWith("page")) {
+                assertEquals("page" + pages++, url);
+            } else {
+                assertEquals("cdb" + cdbs++, url);
+            }
+        }
+        // weights 4 : 1
+        assertEquals(5, pages);
+        assertEquals(20, cdbs);
+
+        // only general lane is left
+        for (int i = 0; i < 15; i++) {
+            assertEquals("page" + pages++, sendNext());
+        }
+        assertEquals(0, mStorage.size());
+    }
+
+    public void testFailedSendDoesNotMoveRoundRobin() {
+        mStorage.addURL("page0");
+        mStorage.addURL("crash0", RequestType.FATAL_EXCEPTION);
+
+        // request isn't removed if it should be retried, the same one is peeked again
+        assertEquals("crash0", mStorage.peek());
+        assertEquals("crash0", mStorage.peek());
+        mStorage.removeLastURL();
+        assertEquals("page0", mStorage.peek());
+    }
+
+    /**
+     * lane that can't read its head, like file store which journal is missing
+     */
+    private static class UnreadableHeadStorage extends MemoryRequestStorage {
+        @Override
+        public synchronized String peek() {
+            final String url = super.peek();
+            return "unreadable".equals(url) ? null : url;
+        }
+    }
+
+    public void testUnreadableHeadIsRemoved() {
+        mStorage = new LaneRequestStorage(new MemoryRequestStorage(), new UnreadableHeadStorage(), 4, 1);
+        mStorage.addURL("unreadable");
+        mStorage.addURL("page0");
+
+        assertNull(mStorage.peek());
+        assertEquals(2, mStorage.size());
+        mStorage.removeLastURL();
+        assertEquals("page0", sendNext());
+        assertEquals(0, mStorage.size());
+
+        // processor doesn't loop forever on unreadable head
+        mStorage.addURL("unreadable");
+        new RequestProcessor(mStorage).run();
+        assertEquals(0, mStorage.size());
+    }
+
+    public void testBatchIsTakenFromOneLane() {
+        for (int i = 0; i < 10; i++) {
+            mStorage.addURL("page" + i);
+        }
+        mStorage.addURL("install", RequestType.INSTALL);
+        mStorage.addURL("cdb", RequestType.CDB);
+
+        List<String> batch = mStorage.peek(5);
+        assertEquals(2, batch.size());
+        assertEquals("install", batch.get(0));
+        assertEquals("cdb", batch.get(1));
+        // only first url is acknowledged
+        mStorage.removeLastURLs(1);
+
+        batch = mStorage.peek(5);
+        assertEquals(1, batch.size());
+        assertEquals("cdb", batch.get(0));
+        mStorage.removeLastURLs(1);
+
+        batch = mStorage.peek(5);
+        assertEquals(5, batch.size());
+        assertEquals("page0", batch.get(0));
+        assertEquals(10, mStorage.size());
+    }
+
+    public void testMetricsOfAllLanes() {
+        mStorage = new LaneRequestStorage(new MemoryRequestStorage(2, RequestUrlStore.OverflowPolicy.DROP_OLDEST),
+                new MemoryRequestStorage(2, RequestUrlStore.OverflowPolicy.DROP_OLDEST), 4, 1);
+        for (int i = 0; i < 3; i++) {
+            mStorage.addURL("page" + i);
+            mStorage.addURL("cdb" + i, RequestType.CDB);
+        }
+
+        assertEquals(4, mStorage.size());
+        assertEquals(2, mStorage.getMetrics().getDroppedCount());
+        assertEquals(1, mStorage.getMetrics().getDroppedCount(RequestType.CDB));
+    }
+}
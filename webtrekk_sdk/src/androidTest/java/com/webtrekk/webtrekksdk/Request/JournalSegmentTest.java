@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class JournalSegmentTest extends AndroidTestCase {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getFilesDir(), "wt-segment-test");
+        deleteDirectory();
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    public void testCompactionKeepsRecordsAfterClockRollback() throws Exception {
+        final List<String> urls = Arrays.asList("http://nglab.org/old", "http://nglab.org/new",
+                "http://nglab.org/rollback1", "http://nglab.org/rollback2");
+        JournalSegment segment = JournalSegment.create(mDirectory, 1, UrlDictionary.fromUrl(urls.get(0)));
+        final long now = segment.getCreatedTime();
+        // clock is set back after the second record, following records look older than it
+        final long[] times = {now - 2 * HOUR, now, now - 2 * HOUR, now - 2 * HOUR};
+        assertEquals(urls.size(), segment.append(urls, new byte[urls.size()], times, 0, 100, 1 << 20));
+
+        assertTrue(segment.compact(0, 0, now - HOUR));
+
+        // only record before the first not expired one loses its data
+        final List<String> out = new ArrayList<>();
+        segment.read(0, urls.size(), 0, out);
+        assertEquals(urls.size(), out.size());
+        assertSame(RequestJournal.EXPIRED_URL, out.get(0));
+        assertEquals(urls.subList(1, urls.size()), out.subList(1, out.size()));
+        segment.close();
+    }
+}
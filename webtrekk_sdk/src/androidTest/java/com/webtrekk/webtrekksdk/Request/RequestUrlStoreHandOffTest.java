@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+
+public class RequestUrlStoreHandOffTest extends AndroidTestCase {
+
+    private static final int MAX_REQUESTS = 100;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new RequestUrlStore(getContext()).clearAllTrackingData();
+        createOtherProcessStore().clearAllTrackingData();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInbox().delete();
+        createOtherProcessStore().clearAllTrackingData();
+        new RequestUrlStore(getContext()).clearAllTrackingData();
+        super.tearDown();
+    }
+
+    private File getInbox() {
+        return new File(getContext().getFilesDir(), "wt-tracking-inbox");
+    }
+
+    /**
+     * store of process that doesn't hold sender lock, lock is held by test process
+     */
+    private RequestUrlStore createOtherProcessStore() {
+        return new RequestUrlStore(getContext(), MAX_REQUESTS, RequestUrlStore.OverflowPolicy.DROP_OLDEST, 0,
+                getContext().getPackageName() + ":other") {
+            @Override
+            boolean tryAcquireSenderLock() {
+                return false;
+            }
+        };
+    }
+
+    private RequestUrlStore createSenderStore() {
+        return new RequestUrlStore(getContext(), MAX_REQUESTS, RequestUrlStore.OverflowPolicy.DROP_OLDEST, 0,
+                getContext().getPackageName());
+    }
+
+    public void testOtherProcessHandsOff() {
+        RequestUrlStore other = createOtherProcessStore();
+        for (int i = 0; i < 3; i++) {
+            other.addURL("http://nglab.org/other" + i);
+        }
+
+        // requests aren't sent by other process, they are moved to inbox
+        assertNull(other.peek());
+        assertEquals(0, other.size());
+        String[] files = getInbox().list();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+
+        // queue of other process stays empty after restart
+        assertEquals(0, createOtherProcessStore().size());
+    }
+
+    public void testSenderAdoptsAfterOwnRequests() {
+        RequestUrlStore sender = createSenderStore();
+        sender.addURL("http://nglab.org/sender0");
+        sender.addURL("http://nglab.org/sender1");
+
+        RequestUrlStore other = createOtherProcessStore();
+        for (int i = 0; i < 3; i++) {
+            other.addURL("http://nglab.org/other" + i);
+        }
+        assertNull(other.peek());
+
+        assertEquals(5, sender.size());
+        assertEquals(0, getInbox().list().length);
+        for (int i = 0; i < 2; i++) {
+            assertEquals("http://nglab.org/sender" + i, sender.peek());
+            sender.removeLastURL();
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("http://nglab.org/other" + i, sender.peek());
+            sender.removeLastURL();
+        }
+        assertEquals(0, sender.size());
+    }
+
+    public void testFailedHandOffSendsLocally() throws IOException {
+        // inbox can't be created
+        assertTrue(getInbox().createNewFile());
+
+        RequestUrlStore other = createOtherProcessStore();
+        for (int i = 0; i < 3; i++) {
+            other.addURL("http://nglab.org/other" + i);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("http://nglab.org/other" + i, other.peek());
+            other.removeLastURL();
+        }
+        assertEquals(0, other.size());
+    }
+
+    public void testClearKeepsInboxOfOtherProcess() {
+        RequestUrlStore other = createOtherProcessStore();
+        other.addURL("http://nglab.org/other0");
+        assertNull(other.peek());
+
+        // segment isn't adopted yet, so it isn't cleared by other process
+        createOtherProcessStore().clearAllTrackingData();
+        assertEquals(1, getInbox().list().length);
+
+        // sender clears it with own requests
+        RequestUrlStore sender = createSenderStore();
+        sender.addURL("http://nglab.org/sender0");
+        sender.clearAllTrackingData();
+        assertEquals(0, getInbox().list().length);
+        assertEquals(0, sender.size());
+        assertEquals(0, createSenderStore().size());
+    }
+}
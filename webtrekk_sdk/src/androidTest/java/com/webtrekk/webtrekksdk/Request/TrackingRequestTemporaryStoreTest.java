@@ -0,0 +1,184 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.TrackingParameter;
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+public class TrackingRequestTemporaryStoreTest extends AndroidTestCase {
+
+    private TrackingConfiguration mConfiguration;
+    private TrackingRequestTemporaryStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConfiguration = new TrackingConfiguration();
+        mStore = new TrackingRequestTemporaryStore(getContext(), mConfiguration);
+        mStore.deleteQueue();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.deleteQueue();
+        super.tearDown();
+    }
+
+    private File getOffsetFile() {
+        return new File(getContext().getFilesDir(), "wt-pending-requests.offset");
+    }
+
+    private void saveRequests(int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            TrackingParameter parameter = new TrackingParameter();
+            parameter.add(Parameter.ACTIVITY_NAME, "page" + i);
+            mStore.saveTrackingRequest(new TrackingRequest(parameter, mConfiguration));
+        }
+    }
+
+    private void assertNextRequest(int index, TrackingRequestTemporaryStore.Reader reader) {
+        TrackingRequest request = reader.next();
+        assertNotNull("request " + index, request);
+        assertEquals("page" + index, request.getTrackingParameter().getDefaultParameter().get(Parameter.ACTIVITY_NAME));
+    }
+
+    private void appendBytes(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(mStore.mStoreFile, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testReadingResumesAfterClose() {
+        saveRequests(0, 10);
+
+        TrackingRequestTemporaryStore.Reader reader = mStore.openReader();
+        for (int i = 0; i < 4; i++) {
+            assertNextRequest(i, reader);
+        }
+        reader.close();
+        assertFalse(mStore.queueIsEmpty());
+        assertTrue(getOffsetFile().exists());
+
+        reader = mStore.openReader();
+        for (int i = 4; i < 10; i++) {
+            assertNextRequest(i, reader);
+        }
+        assertNull(reader.next());
+        reader.close();
+
+        // store and offset are deleted after all requests are read
+        assertTrue(mStore.queueIsEmpty());
+        assertFalse(mStore.mStoreFile.exists());
+        assertFalse(getOffsetFile().exists());
+    }
+
+    public void testReadingResumesAfterProcessKill() {
+        saveRequests(0, 40);
+
+        // reader isn't closed, offset is saved while reading
+        TrackingRequestTemporaryStore.Reader reader = mStore.openReader();
+        for (int i = 0; i < 35; i++) {
+            assertNextRequest(i, reader);
+        }
+
+        // request that was returned last when offset was saved is read again, others aren't
+        reader = mStore.openReader();
+        for (int i = 31; i < 40; i++) {
+            assertNextRequest(i, reader);
+        }
+        assertNull(reader.next());
+        reader.close();
+        assertTrue(mStore.queueIsEmpty());
+    }
+
+    public void testUnparsableRecordIsSkipped() throws IOException {
+        saveRequests(0, 2);
+        appendBytes("{not a request\n".getBytes("UTF-8"));
+        saveRequests(2, 2);
+
+        TrackingRequestTemporaryStore.Reader reader = mStore.openReader();
+        for (int i = 0; i < 4; i++) {
+            assertNextRequest(i, reader);
+        }
+        assertNull(reader.next());
+        reader.close();
+        assertTrue(mStore.queueIsEmpty());
+    }
+
+    public void testCorruptedBinaryRecordIsSkipped() throws IOException {
+        saveRequests(0, 1);
+        // record of general request with default parameter of ordinal -1 and empty other parameters
+        final byte[] request = {0, 1, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 1, 'a',
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        appendBytes(new byte[]{1, 0, 0, 0, (byte) request.length});
+        appendBytes(request);
+        saveRequests(1, 1);
+
+        TrackingRequestTemporaryStore.Reader reader = mStore.openReader();
+        assertNextRequest(0, reader);
+        assertNextRequest(1, reader);
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    public void testTruncatedLastRecordIsDropped() throws IOException {
+        saveRequests(0, 3);
+        RandomAccessFile file = new RandomAccessFile(mStore.mStoreFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        TrackingRequestTemporaryStore.Reader reader = mStore.openReader();
+        assertNextRequest(0, reader);
+        assertNextRequest(1, reader);
+        assertNull(reader.next());
+        reader.close();
+        assertTrue(mStore.queueIsEmpty());
+    }
+
+    public void testFullStoreDropsRequests() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 10 * 1024) {
+            value.append("0123456789");
+        }
+        TrackingParameter parameter = new TrackingParameter();
+        parameter.add(Parameter.ACTIVITY_NAME, value.toString());
+        TrackingRequest request = new TrackingRequest(parameter, mConfiguration);
+
+        while (mStore.mStoreFile.length() < TrackingRequestTemporaryStore.MAX_FILE_SIZE) {
+            mStore.saveTrackingRequest(request);
+        }
+        final long size = mStore.mStoreFile.length();
+        mStore.saveTrackingRequest(request);
+        assertEquals(size, mStore.mStoreFile.length());
+    }
+}
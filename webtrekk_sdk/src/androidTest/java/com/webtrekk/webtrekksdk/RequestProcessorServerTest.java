@@ -0,0 +1,314 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.MemoryRequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestProcessor;
+import com.webtrekk.webtrekksdk.Request.RequestStorage;
+import com.webtrekk.webtrekksdk.Request.RoundTripEstimator;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * sends requests to local HTTPS server, so keep-alive, acknowledgement and timeouts are checked
+ * over real connections
+ */
+public class RequestProcessorServerTest extends AndroidTestCase {
+
+    // password of local_server.p12, key of localhost is valid till 2126
+    private static final String KEYSTORE_PASSWORD = "webtrekk";
+    private static final int BENCHMARK_REQUESTS = 200;
+
+    private MockWebServer mServer;
+    private TrustManager[] mTrustManagers;
+    private SSLSocketFactory mClientSocketFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getContext().getResources().openRawResource(R.raw.local_server);
+        try {
+            keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("localhost", keyStore.getCertificate(keyStore.aliases().nextElement()));
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        mTrustManagers = trustManagerFactory.getTrustManagers();
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, mTrustManagers, null);
+        mClientSocketFactory = clientContext.getSocketFactory();
+
+        mServer = new MockWebServer();
+        mServer.setServerSocketFactory(createNoDelayServerSocketFactory());
+        mServer.useHttps(serverContext.getSocketFactory(), false);
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * server writes headers and body of response separately, without TCP_NODELAY the body waits
+     * for delayed ACK of client like it doesn't on real track servers
+     */
+    private static ServerSocketFactory createNoDelayServerSocketFactory() {
+        return new ServerSocketFactory() {
+            @Override
+            public ServerSocket createServerSocket() throws IOException {
+                return new ServerSocket() {
+                    @Override
+                    public Socket accept() throws IOException {
+                        final Socket socket = super.accept();
+                        socket.setTcpNoDelay(true);
+                        return socket;
+                    }
+                };
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * processor that trusts local server, one socket factory is used for all connections like in SDK
+     */
+    private RequestProcessor createProcessor(RequestStorage store, int batchSize, int concurrency) {
+        return new RequestProcessor(store, null, batchSize, concurrency) {
+            @Override
+            public HttpsURLConnection getUrlConnection(URL url) throws IOException {
+                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+                connection.setSSLSocketFactory(mClientSocketFactory);
+                return connection;
+            }
+        };
+    }
+
+    private String getUrl(int index) {
+        return mServer.url("/123/wt?p=" + index).toString();
+    }
+
+    public void testConnectionIsReused() throws InterruptedException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 5; i++) {
+            store.addURL(getUrl(i));
+            mServer.enqueue(new MockResponse().setBody("ok"));
+        }
+
+        createProcessor(store, 1, 1).run();
+
+        assertEquals(0, store.size());
+        for (int i = 0; i < 5; i++) {
+            RecordedRequest request = mServer.takeRequest();
+            assertEquals("/123/wt?p=" + i, request.getPath());
+            // number of request on its connection, all requests go over the first one
+            assertEquals(i, request.getSequenceNumber());
+        }
+    }
+
+    public void testBatchIsAcknowledgedPartially() throws InterruptedException {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // second batch fails
+                final boolean secondBatch = request.getBody().readUtf8().startsWith("wt?p=2");
+                return new MockResponse().setResponseCode(secondBatch ? 503 : 200);
+            }
+        });
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 4; i++) {
+            store.addURL(getUrl(i));
+        }
+
+        createProcessor(store, 2, 1).run();
+
+        // only urls of accepted batch are removed, failed batch is sent again later
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("/123/batch", mServer.takeRequest().getPath());
+        assertEquals(2, store.size());
+        assertEquals(getUrl(2), store.peek());
+    }
+
+    public void testWindowIsAcknowledgedOutOfOrder() throws InterruptedException {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // third request fails at once, others are acknowledged after latency
+                if (request.getPath().endsWith("p=2")) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                return new MockResponse().setHeadersDelay(300, TimeUnit.MILLISECONDS);
+            }
+        });
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 5; i++) {
+            store.addURL(getUrl(i));
+        }
+
+        final long start = System.currentTimeMillis();
+        createProcessor(store, 1, 5).run();
+        final long duration = System.currentTimeMillis() - start;
+
+        // requests are in flight together, one by one they take 1.2 seconds
+        assertEquals(5, mServer.getRequestCount());
+        assertTrue("duration: " + duration, duration < 1000);
+        // only failed request is kept, acknowledged ones after it aren't sent again
+        assertEquals(1, store.size());
+        assertEquals(getUrl(2), store.peek());
+    }
+
+    public void testReadTimesOut() {
+        RoundTripEstimator estimator = new RoundTripEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.onResponse("WIFI", 10);
+        }
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        store.addURL(getUrl(0));
+
+        RequestProcessor processor = createProcessor(store, 1, 1);
+        processor.setRoundTripEstimator(estimator, "WIFI");
+        final long start = System.currentTimeMillis();
+        processor.run();
+        final long duration = System.currentTimeMillis() - start;
+
+        // request waits for estimated timeout instead of a minute and is kept for retry
+        assertTrue("duration: " + duration, duration >= RoundTripEstimator.MIN_TIMEOUT
+                && duration < RoundTripEstimator.INITIAL_TIMEOUT);
+        assertEquals(1, store.size());
+        assertEquals(1, estimator.getEstimate("WIFI").getTimeoutCount());
+    }
+
+    /**
+     * processor of previous versions, every connection gets own socket factory, so connection pool
+     * doesn't reuse it
+     */
+    private RequestProcessor createProcessorWithoutReuse(RequestStorage store) {
+        return new RequestProcessor(store, null, 1, 1) {
+            @Override
+            public HttpsURLConnection getUrlConnection(URL url) throws IOException {
+                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+                try {
+                    SSLContext context = SSLContext.getInstance("TLS");
+                    context.init(null, mTrustManagers, null);
+                    connection.setSSLSocketFactory(context.getSocketFactory());
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                return connection;
+            }
+        };
+    }
+
+    /**
+     * sends benchmark requests one by one and logs requests per second
+     *
+     * @return number of connections that are opened to server
+     */
+    private int measureThroughput(String name, RequestProcessor processor, MemoryRequestStorage store) throws InterruptedException {
+        final long start = System.nanoTime();
+        processor.run();
+        final long duration = System.nanoTime() - start;
+        assertEquals(0, store.size());
+
+        int connections = 0;
+        for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+            if (mServer.takeRequest().getSequenceNumber() == 0) {
+                connections++;
+            }
+        }
+        WebtrekkLogging.log(String.format("throughput benchmark %s: %.0f req/s, %d connections",
+                name, BENCHMARK_REQUESTS * 1e9 / duration, connections));
+        return connections;
+    }
+
+    public void testThroughput() throws InterruptedException {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("ok");
+            }
+        });
+
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+            store.addURL(getUrl(i));
+        }
+        final int connectionsBefore = measureThroughput("before (socket factory per connection)",
+                createProcessorWithoutReuse(store), store);
+
+        for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+            store.addURL(getUrl(i));
+        }
+        final int connectionsAfter = measureThroughput("after (shared socket factory, response is drained)",
+                createProcessor(store, 1, 1), store);
+
+        assertEquals(BENCHMARK_REQUESTS, connectionsBefore);
+        assertEquals(1, connectionsAfter);
+    }
+}
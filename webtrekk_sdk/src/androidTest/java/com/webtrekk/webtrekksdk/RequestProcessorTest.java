@@ -20,16 +20,33 @@ package com.webtrekk.webtrekksdk;
 
 import android.test.AndroidTestCase;
 
+import com.webtrekk.webtrekksdk.Request.MemoryRequestStorage;
 import com.webtrekk.webtrekksdk.Request.RequestProcessor;
+import com.webtrekk.webtrekksdk.Request.RequestTransferMetrics;
 import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Request.RetryScheduler;
+import com.webtrekk.webtrekksdk.Request.RoundTripEstimator;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.isNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -73,7 +90,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
         // test valid url first
         when(requestUrlStore.peek()).thenReturn("http://nglab.org");
-        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
         when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
         doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
         requestProcessor.run();
@@ -82,7 +99,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         verify(mockHttpURLConnection, times(1)).connect();
         verify(mockHttpURLConnection, times(1)).getResponseCode();
         verify(requestUrlStore, times(1)).removeLastURL();
-        verify(mockHttpURLConnection, times(1)).disconnect();
+        verify(mockHttpURLConnection, times(0)).disconnect();
 
     }
 
@@ -91,7 +108,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         when(requestUrlStore.size()).thenReturn(2).thenReturn(1).thenReturn(0);
         // test valid url first
         when(requestUrlStore.peek()).thenReturn("http://nglab.org").thenReturn("http://nglab.org");
-        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
         when(mockHttpURLConnection.getResponseCode()).thenReturn(200).thenReturn(200);
         doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
         requestProcessor.run();
@@ -100,7 +117,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         verify(mockHttpURLConnection, times(2)).connect();
         verify(mockHttpURLConnection, times(2)).getResponseCode();
         verify(requestUrlStore, times(2)).removeLastURL();
-        verify(mockHttpURLConnection, times(2)).disconnect();
+        verify(mockHttpURLConnection, times(0)).disconnect();
     }
 
     public void testInvalidUrl() throws IOException {
@@ -108,7 +125,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
         // test valid url first
         when(requestUrlStore.peek()).thenReturn("invalidurl");
-        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
         when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
         doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
         requestProcessor.run();
@@ -125,7 +142,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
         // test valid url first
         when(requestUrlStore.peek()).thenReturn("http://nglab.org");
-        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
         when(mockHttpURLConnection.getResponseCode()).thenReturn(500);
         doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL)any());
         requestProcessor.run();
@@ -134,7 +151,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         verify(mockHttpURLConnection, times(1)).connect();
         verify(mockHttpURLConnection, times(1)).getResponseCode();
         verify(requestUrlStore, times(0)).removeLastURL();
-        verify(mockHttpURLConnection, times(1)).disconnect();
+        verify(mockHttpURLConnection, times(0)).disconnect();
     }
 
     public void testServerSideError() throws IOException {
@@ -142,7 +159,7 @@ public class RequestProcessorTest extends AndroidTestCase {
         when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
         // test valid url first
         when(requestUrlStore.peek()).thenReturn("http://nglab.org");
-        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
         when(mockHttpURLConnection.getResponseCode()).thenReturn(-1);
         doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
         requestProcessor.run();
@@ -151,7 +168,295 @@ public class RequestProcessorTest extends AndroidTestCase {
         verify(mockHttpURLConnection, times(1)).connect();
         verify(mockHttpURLConnection, times(1)).getResponseCode();
         verify(requestUrlStore, times(1)).removeLastURL();
+        verify(mockHttpURLConnection, times(0)).disconnect();
+    }
+
+    public void testResponseIsReadForKeepAlive() throws IOException {
+        requestProcessor = spy(requestProcessor);
+        when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
+        when(requestUrlStore.peek()).thenReturn("http://nglab.org");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        ByteArrayInputStream response = new ByteArrayInputStream(new byte[5000]);
+        when(mockHttpURLConnection.getInputStream()).thenReturn(response);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+        // body is read till the end, so connection goes back to the pool
+        assertEquals(0, response.available());
+        verify(requestUrlStore, times(1)).removeLastURL();
+        verify(mockHttpURLConnection, times(0)).disconnect();
+    }
+
+    public void testBrokenResponseDisconnects() throws IOException {
+        requestProcessor = spy(requestProcessor);
+        when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
+        when(requestUrlStore.peek()).thenReturn("http://nglab.org");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        InputStream response = mock(InputStream.class);
+        doThrow(new IOException()).when(response).read((byte[]) any());
+        when(mockHttpURLConnection.getInputStream()).thenReturn(response);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+        verify(requestUrlStore, times(1)).removeLastURL();
+        verify(mockHttpURLConnection, times(1)).disconnect();
+    }
+
+    public void testLargeResponseDisconnects() throws IOException {
+        requestProcessor = spy(requestProcessor);
+        when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
+        when(requestUrlStore.peek()).thenReturn("http://nglab.org");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        when(mockHttpURLConnection.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[200 * 1024]));
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+        verify(requestUrlStore, times(1)).removeLastURL();
         verify(mockHttpURLConnection, times(1)).disconnect();
     }
 
+    public void testBatchRequests() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 250; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 100));
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(mockHttpURLConnection.getOutputStream()).thenReturn(body);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        // 100 + 100 + 50 requests
+        verify(requestProcessor, times(3)).getUrlConnection(new URL("https://nglab.org/123/batch"));
+        verify(mockHttpURLConnection, times(3)).setRequestMethod("POST");
+        final String[] lines = body.toString("UTF-8").split("\n");
+        assertEquals(250, lines.length);
+        assertEquals("wt?p=0", lines[0]);
+        assertEquals("wt?p=249", lines[249]);
+        assertEquals(0, store.size());
+    }
+
+    public void testBatchIsKeptOnServerError() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 50; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 100));
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(503);
+        when(mockHttpURLConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        verify(requestProcessor, times(1)).getUrlConnection((URL) any());
+        assertEquals(50, store.size());
+        assertEquals("https://nglab.org/123/wt?p=0", store.peek());
+    }
+
+    public void testBatchIsKeptOnConnectionError() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 50; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 100));
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        // e.g. TLS or pinning failure, sendRequest returns -1
+        doThrow(new IOException("handshake failed")).when(mockHttpURLConnection).connect();
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        verify(requestProcessor, times(1)).getUrlConnection((URL) any());
+        assertEquals(50, store.size());
+        assertEquals("https://nglab.org/123/wt?p=0", store.peek());
+    }
+
+    public void testMissingBatchEndpointFallsBackToSingleRequests() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 50; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 100));
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        HttpsURLConnection batchConnection = mock(HttpsURLConnection.class);
+        when(batchConnection.getResponseCode()).thenReturn(404);
+        when(batchConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        doReturn(batchConnection).when(requestProcessor).getUrlConnection(new URL("https://nglab.org/123/batch"));
+        requestProcessor.run();
+
+        // batch endpoint is tried once, then every url is sent by GET
+        verify(requestProcessor, times(1)).getUrlConnection(new URL("https://nglab.org/123/batch"));
+        verify(mockHttpURLConnection, times(50)).setRequestMethod("GET");
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * @return connection that responds with status code after delay
+     */
+    private HttpsURLConnection mockSlowConnection(final int statusCode, final long delay, final AtomicInteger inFlight, final AtomicInteger maxInFlight) throws IOException {
+        HttpsURLConnection connection = mock(HttpsURLConnection.class);
+        doAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                final int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                try {
+                    Thread.sleep(delay);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                return statusCode;
+            }
+        }).when(connection).getResponseCode();
+        return connection;
+    }
+
+    public void testConcurrentRequests() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 20; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 0, 5));
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        doReturn(mockSlowConnection(200, 200, inFlight, maxInFlight)).when(requestProcessor).getUrlConnection((URL) any());
+
+        final long start = System.currentTimeMillis();
+        requestProcessor.run();
+        final long time = System.currentTimeMillis() - start;
+
+        // 20 requests with 200 ms latency take 4 seconds one by one
+        assertTrue("time: " + time, time < 2000);
+        assertEquals(5, maxInFlight.get());
+        assertEquals(0, store.size());
+    }
+
+    public void testOutOfOrderAcknowledgement() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 5; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 0, 5));
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        doReturn(mockSlowConnection(200, 300, inFlight, maxInFlight)).when(requestProcessor).getUrlConnection((URL) any());
+        // third request fails before the others are acknowledged
+        doReturn(mockSlowConnection(503, 0, inFlight, maxInFlight)).when(requestProcessor).getUrlConnection(new URL("https://nglab.org/123/wt?p=2"));
+        requestProcessor.run();
+
+        // only failed request is kept, acknowledged ones after it aren't sent again
+        assertEquals(1, store.size());
+        assertEquals("https://nglab.org/123/wt?p=2", store.peek());
+    }
+
+    public void testCompressedBatch() throws IOException {
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 100; i++) {
+            store.addURL("https://nglab.org/123/wt?p=432,MainActivity,0,1080x1920,32,0," + (1500000000000L + i)
+                    + ",0,0,0&eid=2152342354235423542&fns=0&one=0&X-WT-UA=Tracking%20Library%204.3.2%20(Android%209)&la=de&cs1=" + i);
+        }
+        RequestTransferMetrics metrics = new RequestTransferMetrics();
+        requestProcessor = spy(new RequestProcessor(store, null, 100));
+        requestProcessor.setCompressionLevel(6);
+        requestProcessor.setTransferMetrics(metrics, "WIFI");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(mockHttpURLConnection.getOutputStream()).thenReturn(body);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        verify(mockHttpURLConnection, times(1)).setRequestProperty("Content-Encoding", "gzip");
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()));
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            raw.write(buffer, 0, count);
+        }
+        final String[] lines = raw.toString("UTF-8").split("\n");
+        assertEquals(100, lines.length);
+        assertTrue(lines[99], lines[99].endsWith("&cs1=99"));
+
+        RequestTransferMetrics.Counters counters = metrics.getCounters("WIFI");
+        assertEquals(1, counters.getBodyCount());
+        assertEquals(raw.size(), counters.getRawBytes());
+        assertEquals(body.size(), counters.getSentBytes());
+        assertTrue(counters.toString(), counters.getSentBytes() * 5 < counters.getRawBytes());
+    }
+
+    public void testRetrySchedulerIsNotified() throws IOException {
+        when(requestUrlStore.size()).thenReturn(1);
+        when(requestUrlStore.peek()).thenReturn("http://nglab.org");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(503).thenReturn(200);
+        RetryScheduler retryScheduler = mock(RetryScheduler.class);
+
+        requestProcessor = spy(requestProcessor);
+        requestProcessor.setRetryScheduler(retryScheduler);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+        verify(retryScheduler, times(1)).onFailure();
+        verify(retryScheduler, times(0)).onSuccess();
+
+        when(requestUrlStore.size()).thenReturn(1).thenReturn(0);
+        requestProcessor.run();
+        verify(retryScheduler, times(1)).onSuccess();
+    }
+
+    public void testTimeoutFollowsRoundTrip() throws IOException {
+        RoundTripEstimator estimator = new RoundTripEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.onResponse("WIFI", 100);
+        }
+        when(requestUrlStore.size()).thenReturn(1);
+        when(requestUrlStore.peek()).thenReturn("http://nglab.org");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenThrow(new SocketTimeoutException());
+
+        requestProcessor = spy(requestProcessor);
+        requestProcessor.setRoundTripEstimator(estimator, "WIFI");
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        // fast network gets minimal timeout instead of a minute
+        verify(mockHttpURLConnection, times(1)).setConnectTimeout(eq(RoundTripEstimator.MIN_TIMEOUT));
+        verify(mockHttpURLConnection, times(1)).setReadTimeout(eq(RoundTripEstimator.MIN_TIMEOUT));
+        verify(requestUrlStore, times(0)).removeLastURL();
+        assertEquals(1, estimator.getEstimate("WIFI").getTimeoutCount());
+        assertEquals(RoundTripEstimator.MIN_TIMEOUT * 2, estimator.getTimeout("WIFI"));
+    }
+
+    public void testOnlySingleRequestsAreSampled() throws IOException {
+        RoundTripEstimator estimator = new RoundTripEstimator();
+        MemoryRequestStorage store = new MemoryRequestStorage();
+        for (int i = 0; i < 5; i++) {
+            store.addURL("https://nglab.org/123/wt?p=" + i);
+        }
+        requestProcessor = spy(new RequestProcessor(store, null, 100));
+        requestProcessor.setRoundTripEstimator(estimator, "WIFI");
+        HttpsURLConnection mockHttpURLConnection = mock(HttpsURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        when(mockHttpURLConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        // upload of batch body isn't round trip
+        assertEquals(0, store.size());
+        assertNull(estimator.getEstimate("WIFI"));
+
+        store.addURL("https://nglab.org/123/wt?p=5");
+        requestProcessor = spy(new RequestProcessor(store));
+        requestProcessor.setRoundTripEstimator(estimator, "WIFI");
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+
+        assertEquals(1, estimator.getEstimate("WIFI").getSampleCount());
+    }
+
 }
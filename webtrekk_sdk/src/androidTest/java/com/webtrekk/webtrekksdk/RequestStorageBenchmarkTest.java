@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.MemoryRequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Request.SQLiteRequestStorage;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.util.Arrays;
+
+/**
+ * compares throughput and latency of append, peek and remove of request storages.
+ * Results are written to log.
+ */
+public class RequestStorageBenchmarkTest extends AndroidTestCase {
+
+    private static final int REQUEST_COUNT = 2000;
+    private static final String URL = "https://q3.webtrekk.net/123451234512345/wt?p=432,MainActivity,0,1080x1920,32,0,1500000000000,0,0,0"
+            + "&eid=2152342354235423542&fns=0&one=0&X-WT-UA=Tracking%20Library%204.3.2%20(Android%209)&tz=1.0&la=de&cs1=";
+
+    private RequestStorage createStorage(RequestStorage.Type type) {
+        switch (type) {
+            case SQLITE:
+                return new SQLiteRequestStorage(getContext(), Integer.MAX_VALUE, RequestUrlStore.OverflowPolicy.DROP_OLDEST);
+            case MEMORY:
+                return new MemoryRequestStorage();
+            default:
+                return new RequestUrlStore(getContext());
+        }
+    }
+
+    public void testFileStorage() {
+        benchmark(RequestStorage.Type.FILE);
+    }
+
+    public void testSQLiteStorage() {
+        benchmark(RequestStorage.Type.SQLITE);
+    }
+
+    public void testMemoryStorage() {
+        benchmark(RequestStorage.Type.MEMORY);
+    }
+
+    private void benchmark(RequestStorage.Type type) {
+        RequestStorage storage = createStorage(type);
+        storage.clearAllTrackingData();
+
+        final long[] appendTimes = new long[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            final long start = System.nanoTime();
+            storage.addURL(URL + i);
+            appendTimes[i] = System.nanoTime() - start;
+        }
+        storage.flush();
+
+        if (type != RequestStorage.Type.MEMORY) {
+            // urls are read from storage as after application restart
+            storage = createStorage(type);
+        }
+        assertEquals(REQUEST_COUNT, storage.size());
+
+        final long[] peekTimes = new long[REQUEST_COUNT];
+        final long[] removeTimes = new long[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            long start = System.nanoTime();
+            final String url = storage.peek();
+            peekTimes[i] = System.nanoTime() - start;
+            assertEquals(URL + i, url);
+
+            start = System.nanoTime();
+            storage.removeLastURL();
+            removeTimes[i] = System.nanoTime() - start;
+        }
+        assertEquals(0, storage.size());
+        storage.clearAllTrackingData();
+
+        WebtrekkLogging.log("storage benchmark " + type + ": append " + describe(appendTimes)
+                + ", peek " + describe(peekTimes) + ", remove " + describe(removeTimes));
+    }
+
+    private static String describe(long[] times) {
+        long sum = 0;
+        for (long time : times) {
+            sum += time;
+        }
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        final long p99 = sorted[(int) (sorted.length * 0.99) - 1];
+
+        return String.format("%.0f ops/s p99 %.3f ms", times.length * 1e9 / Math.max(1, sum), p99 / 1e6);
+    }
+}
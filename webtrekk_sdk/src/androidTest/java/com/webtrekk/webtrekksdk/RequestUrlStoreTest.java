@@ -0,0 +1,357 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Request.TrackingRequest.RequestType;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class RequestUrlStoreTest extends AndroidTestCase {
+
+    private static final int MAX_REQUESTS = 100;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new RequestUrlStore(getContext()).clearAllTrackingData();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new RequestUrlStore(getContext()).clearAllTrackingData();
+        super.tearDown();
+    }
+
+    private RequestUrlStore fillStore(RequestUrlStore.OverflowPolicy policy, RequestType type, int count) {
+        RequestUrlStore store = new RequestUrlStore(getContext(), MAX_REQUESTS, policy);
+        for (int i = 0; i < count; i++) {
+            store.addURL("http://nglab.org/" + i, type);
+        }
+        return store;
+    }
+
+    public void testDropOldest() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_OLDEST, RequestType.GENERAL, MAX_REQUESTS + 10);
+
+        assertEquals(MAX_REQUESTS, store.size());
+        assertEquals("http://nglab.org/10", store.peek());
+        assertEquals(10, store.getMetrics().getDroppedCount());
+        assertEquals(10, store.getMetrics().getDroppedCount(RequestType.GENERAL));
+    }
+
+    public void testDropNewest() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_NEWEST, RequestType.GENERAL, MAX_REQUESTS + 10);
+
+        assertEquals(MAX_REQUESTS, store.size());
+        assertEquals("http://nglab.org/0", store.peek());
+        assertEquals(10, store.getMetrics().getDroppedCount());
+    }
+
+    public void testDropLowestPriority() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_LOWEST_PRIORITY, RequestType.CDB, MAX_REQUESTS);
+
+        // lower priority than head is dropped
+        store.addURL("http://nglab.org/general", RequestType.GENERAL);
+        assertEquals(MAX_REQUESTS, store.size());
+        assertEquals("http://nglab.org/0", store.peek());
+        assertEquals(1, store.getMetrics().getDroppedCount(RequestType.GENERAL));
+
+        // higher priority replaces head
+        store.addURL("http://nglab.org/install", RequestType.INSTALL);
+        assertEquals(MAX_REQUESTS, store.size());
+        assertEquals("http://nglab.org/1", store.peek());
+        assertEquals(1, store.getMetrics().getDroppedCount(RequestType.CDB));
+    }
+
+    public void testDropOldestFromJournal() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_OLDEST, RequestType.GENERAL, MAX_REQUESTS);
+        store.flush();
+
+        store = new RequestUrlStore(getContext(), MAX_REQUESTS, RequestUrlStore.OverflowPolicy.DROP_OLDEST);
+        assertEquals(MAX_REQUESTS, store.size());
+
+        store.addURL("http://nglab.org/new", RequestType.GENERAL);
+        assertEquals(MAX_REQUESTS, store.size());
+        assertEquals("http://nglab.org/1", store.peek());
+    }
+
+    public void testRestoreAfterRestart() {
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        for (int i = 0; i < 3000; i++) {
+            store.addURL("http://nglab.org/" + i);
+        }
+        for (int i = 0; i < 1500; i++) {
+            store.peek();
+            store.removeLastURL();
+        }
+        store.flush();
+
+        store = new RequestUrlStore(getContext());
+        assertEquals(1500, store.size());
+        for (int i = 1500; i < 3000; i++) {
+            assertEquals("http://nglab.org/" + i, store.peek());
+            store.removeLastURL();
+        }
+        assertEquals(0, store.size());
+    }
+
+    public void testUrlsAddedWhileOpening() {
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        for (int i = 0; i < 300; i++) {
+            store.addURL("http://nglab.org/" + i);
+        }
+        store.flush();
+
+        // urls are added before journal is opened and are sent after urls from journal
+        store = new RequestUrlStore(getContext());
+        for (int i = 300; i < 400; i++) {
+            store.addURL("http://nglab.org/" + i);
+        }
+        assertEquals(400, store.size());
+        for (int i = 0; i < 400; i++) {
+            assertEquals("http://nglab.org/" + i, store.peek());
+            store.removeLastURL();
+        }
+    }
+
+    public void testMultiByteUrls() {
+        final String url = "http://nglab.org/?cp1=\u00fcber\u20ac";
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        for (int i = 0; i < 500; i++) {
+            store.addURL(url + i);
+        }
+        store.flush();
+
+        store = new RequestUrlStore(getContext());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(url + i, store.peek());
+            store.removeLastURL();
+        }
+    }
+
+    public void testJournalIsCompressed() {
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        long urlsSize = 0;
+        for (int i = 0; i < 1000; i++) {
+            final String url = "https://q3.webtrekk.net/123451234512345/wt?p=432,MainActivity,0,1080x1920,32,0," + (1500000000000L + i)
+                    + ",0,0,0&eid=2152342354235423542&fns=0&one=0&X-WT-UA=Tracking%20Library%204.3.2%20(Android%209)&tz=1.0&la=de&cs1=" + i;
+            urlsSize += url.length();
+            store.addURL(url);
+        }
+        store.flush();
+
+        long journalSize = 0;
+        for (File file : store.getRequestStoreFile().getParentFile().listFiles()) {
+            journalSize += file.length();
+        }
+        assertTrue("journal size: " + journalSize + " urls size: " + urlsSize, journalSize < urlsSize / 2);
+    }
+
+    public void testPeekedRequestIsDropped() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_OLDEST, RequestType.GENERAL, MAX_REQUESTS);
+
+        // head is being sent while it is dropped
+        assertEquals("http://nglab.org/0", store.peek());
+        store.addURL("http://nglab.org/new", RequestType.GENERAL);
+        store.removeLastURL();
+
+        assertEquals(MAX_REQUESTS, store.size());
+        assertEquals("http://nglab.org/1", store.peek());
+    }
+
+    public void testCorruptedRecordIsSkipped() throws IOException {
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        for (int i = 0; i < 500; i++) {
+            store.addURL("http://nglab.org/" + i);
+        }
+        store.flush();
+
+        final File file = store.getRequestStoreFile();
+        corruptByte(file, file.length() / 2);
+
+        store = new RequestUrlStore(getContext());
+        assertEquals(500, store.size());
+        assertEquals(499, drainAndCheckOrder(store));
+        assertEquals(1, store.getMetrics().getLostCount());
+    }
+
+    public void testRecoveryFromCorruptedJournal() throws IOException {
+        final int count = 4500;
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        for (int i = 0; i < count; i++) {
+            store.addURL("http://nglab.org/" + i);
+        }
+        store.flush();
+
+        // damage the middle of first segment and cut the end of last one
+        final File[] files = store.getRequestStoreFile().getParentFile().listFiles();
+        Arrays.sort(files);
+        corruptByte(files[0], files[0].length() / 2);
+        final File tail = store.getRequestStoreFile();
+        RandomAccessFile file = new RandomAccessFile(tail, "rw");
+        try {
+            file.setLength(tail.length() - 3);
+        } finally {
+            file.close();
+        }
+        new File(tail.getPath() + ".idx").delete();
+
+        final long start = System.currentTimeMillis();
+        store = new RequestUrlStore(getContext());
+        final int sent = drainAndCheckOrder(store);
+        WebtrekkLogging.log("recovery of " + count + " requests took " + (System.currentTimeMillis() - start) + " ms, lost: " + (count - sent));
+
+        assertEquals(count - 2, sent);
+        assertEquals(2, store.getMetrics().getLostCount());
+    }
+
+    public void testSentRequestsAreCompacted() throws InterruptedException {
+        final String padding = new String(new char[300]).replace('\0', 'x');
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        for (int i = 0; i < 900; i++) {
+            store.addURL("http://nglab.org/" + i + padding);
+        }
+        store.flush();
+
+        final File file = store.getRequestStoreFile();
+        final long fullSize = file.length();
+        for (int i = 0; i < 700; i++) {
+            store.peek();
+            store.removeLastURL();
+        }
+        store.flush();
+
+        // compaction is done in background
+        for (int i = 0; i < 50 && file.length() > fullSize / 2; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue("file size: " + file.length() + " before: " + fullSize, file.length() < fullSize / 2);
+
+        store = new RequestUrlStore(getContext());
+        assertEquals(200, store.size());
+        for (int i = 700; i < 900; i++) {
+            assertEquals("http://nglab.org/" + i + padding, store.peek());
+            store.removeLastURL();
+        }
+    }
+
+    public void testExpiredRequestsAreSkipped() throws InterruptedException {
+        RequestUrlStore store = new RequestUrlStore(getContext());
+        store.setMaxRequestAge(1000);
+        for (int i = 0; i < 300; i++) {
+            store.addURL("http://nglab.org/" + i);
+        }
+        store.flush();
+
+        // record time in journal is kept in seconds
+        Thread.sleep(2100);
+        store.addURL("http://nglab.org/new");
+        store.flush();
+
+        store = new RequestUrlStore(getContext());
+        store.setMaxRequestAge(1000);
+        assertEquals("http://nglab.org/new", store.peek());
+        assertEquals(300, store.getMetrics().getExpiredCount());
+        assertEquals(1, store.size());
+    }
+
+    public void testBatchFromJournal() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_OLDEST, RequestType.GENERAL, MAX_REQUESTS);
+        store.flush();
+
+        store = new RequestUrlStore(getContext(), MAX_REQUESTS, RequestUrlStore.OverflowPolicy.DROP_OLDEST);
+        List<String> batch = store.peek(30);
+        assertEquals(30, batch.size());
+        assertEquals("http://nglab.org/0", batch.get(0));
+        assertEquals("http://nglab.org/29", batch.get(29));
+
+        // only acknowledged part of batch is removed
+        store.removeLastURLs(20);
+        assertEquals(MAX_REQUESTS - 20, store.size());
+        assertEquals("http://nglab.org/20", store.peek());
+    }
+
+    public void testBatchIsDroppedPartially() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_OLDEST, RequestType.GENERAL, MAX_REQUESTS);
+
+        // head of batch is dropped while batch is being sent
+        assertEquals(10, store.peek(10).size());
+        for (int i = 0; i < 3; i++) {
+            store.addURL("http://nglab.org/new" + i, RequestType.GENERAL);
+        }
+        store.removeLastURLs(10);
+
+        assertEquals(MAX_REQUESTS - 7, store.size());
+        assertEquals("http://nglab.org/10", store.peek());
+    }
+
+    public void testBatchIsRemovedOutOfOrder() {
+        RequestUrlStore store = fillStore(RequestUrlStore.OverflowPolicy.DROP_OLDEST, RequestType.GENERAL, 10);
+
+        assertEquals(5, store.peek(5).size());
+        store.removeLastURLs(new boolean[]{true, true, false, true, true});
+
+        // sent urls after not sent one aren't peeked again
+        assertEquals("http://nglab.org/2", store.peek());
+        assertEquals(Arrays.asList("http://nglab.org/2"), store.peek(5));
+        store.removeLastURLs(new boolean[]{true});
+        assertEquals(5, store.size());
+        assertEquals("http://nglab.org/5", store.peek());
+    }
+
+    private void corruptByte(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            final int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * sends all requests and checks that they are in order
+     *
+     * @return number of sent requests
+     */
+    private int drainAndCheckOrder(RequestUrlStore store) {
+        int sent = 0;
+        int last = -1;
+        String url;
+        while ((url = store.peek()) != null) {
+            final int number = Integer.parseInt(url.substring("http://nglab.org/".length()));
+            assertTrue(url, number > last);
+            last = number;
+            sent++;
+            store.removeLastURL();
+        }
+        assertEquals(0, store.size());
+        return sent;
+    }
+}
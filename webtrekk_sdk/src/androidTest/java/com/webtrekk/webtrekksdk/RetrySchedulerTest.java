@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.RetryScheduler;
+
+import java.util.Random;
+
+
+public class RetrySchedulerTest extends AndroidTestCase {
+
+    private static final long BASE_DELAY = 1000;
+    private static final long MAX_DELAY = 60 * 1000;
+    private static final long OPEN_DURATION = 10 * 60 * 1000;
+
+    /**
+     * clock that is moved by test
+     */
+    private static class SimulatedClock implements RetryScheduler.Clock {
+        long mTime = 1000000;
+
+        @Override
+        public long currentTimeMillis() {
+            return mTime;
+        }
+    }
+
+    private SimulatedClock mClock;
+    private RetryScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new SimulatedClock();
+        mScheduler = new RetryScheduler(BASE_DELAY, MAX_DELAY, 5, OPEN_DURATION, mClock, new Random(1));
+    }
+
+    public void testBackoffIsCappedAndJittered() {
+        for (int failure = 1; failure < 5; failure++) {
+            assertTrue(mScheduler.canSend());
+            final long delay = mScheduler.onFailure();
+            final long ceiling = Math.min(MAX_DELAY, BASE_DELAY << (failure - 1));
+            assertTrue("delay: " + delay + " ceiling: " + ceiling, delay >= 0 && delay <= ceiling);
+            assertEquals(RetryScheduler.State.CLOSED, mScheduler.getState());
+
+            if (delay > 0) {
+                assertFalse(mScheduler.canSend());
+            }
+            mClock.mTime += delay;
+        }
+        assertEquals(4, mScheduler.getFailureCount());
+    }
+
+    public void testDelayIsCapped() {
+        RetryScheduler scheduler = new RetryScheduler(BASE_DELAY, MAX_DELAY, 100, OPEN_DURATION, mClock, new Random(1));
+        for (int i = 0; i < 80; i++) {
+            assertTrue(scheduler.canSend());
+            final long delay = scheduler.onFailure();
+            assertTrue("delay: " + delay, delay >= 0 && delay <= MAX_DELAY);
+            mClock.mTime += delay;
+        }
+    }
+
+    public void testJitterSpreadsDevices() {
+        // devices that failed at the same moment retry at different times
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int device = 0; device < 100; device++) {
+            RetryScheduler scheduler = new RetryScheduler(BASE_DELAY, MAX_DELAY, 5, OPEN_DURATION, mClock, new Random(device));
+            scheduler.onFailure();
+            scheduler.onFailure();
+            final long delay = scheduler.onFailure();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("min: " + min + " max: " + max, max - min > BASE_DELAY * 2);
+    }
+
+    public void testCircuitOpensAndCloses() {
+        for (int i = 0; i < 4; i++) {
+            mClock.mTime += mScheduler.onFailure();
+        }
+        final long openDelay = mScheduler.onFailure();
+        assertEquals(RetryScheduler.State.OPEN, mScheduler.getState());
+        assertTrue("delay: " + openDelay, openDelay >= OPEN_DURATION / 2 && openDelay <= OPEN_DURATION);
+
+        mClock.mTime += openDelay - 1;
+        assertFalse(mScheduler.canSend());
+        assertEquals(RetryScheduler.State.OPEN, mScheduler.getState());
+
+        // one attempt is allowed after open duration
+        mClock.mTime += 1;
+        assertTrue(mScheduler.canSend());
+        assertEquals(RetryScheduler.State.HALF_OPEN, mScheduler.getState());
+
+        mScheduler.onSuccess();
+        assertEquals(RetryScheduler.State.CLOSED, mScheduler.getState());
+        assertEquals(0, mScheduler.getFailureCount());
+        assertEquals(0, mScheduler.getDelay());
+        assertEquals(1, mScheduler.getOpenCount());
+    }
+
+    public void testHalfOpenFailureOpensAgain() {
+        for (int i = 0; i < 5; i++) {
+            mClock.mTime += mScheduler.onFailure();
+        }
+        assertTrue(mScheduler.canSend());
+        assertEquals(RetryScheduler.State.HALF_OPEN, mScheduler.getState());
+
+        final long delay = mScheduler.onFailure();
+        assertEquals(RetryScheduler.State.OPEN, mScheduler.getState());
+        assertTrue("delay: " + delay, delay >= OPEN_DURATION / 2);
+        assertEquals(2, mScheduler.getOpenCount());
+    }
+
+    public void testExplicitSendIgnoresDelay() {
+        mScheduler.onFailure();
+        mScheduler.onFailure();
+        mScheduler.onFailure();
+        if (mScheduler.getDelay() > 0) {
+            assertFalse(mScheduler.canSend());
+        }
+        assertTrue(mScheduler.canSend(true));
+        assertEquals(RetryScheduler.State.CLOSED, mScheduler.getState());
+    }
+
+    public void testExplicitSendIsHalfOpenAttempt() {
+        for (int i = 0; i < 5; i++) {
+            mScheduler.onFailure();
+        }
+        assertEquals(RetryScheduler.State.OPEN, mScheduler.getState());
+        assertFalse(mScheduler.canSend());
+
+        // application send is allowed while circuit is open, its failure opens circuit again
+        assertTrue(mScheduler.canSend(true));
+        assertEquals(RetryScheduler.State.HALF_OPEN, mScheduler.getState());
+        mScheduler.onFailure();
+        assertEquals(RetryScheduler.State.OPEN, mScheduler.getState());
+        assertFalse(mScheduler.canSend());
+
+        assertTrue(mScheduler.canSend(true));
+        mScheduler.onSuccess();
+        assertEquals(RetryScheduler.State.CLOSED, mScheduler.getState());
+        assertTrue(mScheduler.canSend());
+    }
+}
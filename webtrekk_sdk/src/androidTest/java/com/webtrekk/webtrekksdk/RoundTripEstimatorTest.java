@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Request.RoundTripEstimator;
+
+
+public class RoundTripEstimatorTest extends AndroidTestCase {
+
+    private RoundTripEstimator mEstimator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEstimator = new RoundTripEstimator();
+    }
+
+    public void testInitialTimeout() {
+        assertEquals(RoundTripEstimator.INITIAL_TIMEOUT, mEstimator.getTimeout("WIFI"));
+        assertNull(mEstimator.getEstimate("WIFI"));
+    }
+
+    public void testTimeoutFollowsRoundTrip() {
+        mEstimator.onResponse("WIFI", 2000);
+        RoundTripEstimator.Estimate estimate = mEstimator.getEstimate("WIFI");
+        assertEquals(2000, estimate.getSmoothedRtt());
+        assertEquals(1000, estimate.getRttVariance());
+        // srtt + 4 * rttvar
+        assertEquals(6000, mEstimator.getTimeout("WIFI"));
+
+        // stable network makes variance smaller
+        for (int i = 0; i < 50; i++) {
+            mEstimator.onResponse("WIFI", 2000);
+        }
+        estimate = mEstimator.getEstimate("WIFI");
+        assertEquals(2000, estimate.getSmoothedRtt());
+        assertTrue(estimate.toString(), estimate.getRttVariance() < 10);
+        assertEquals(51, estimate.getSampleCount());
+        assertEquals(RoundTripEstimator.MIN_TIMEOUT, mEstimator.getTimeout("WIFI"));
+
+        // other connection type isn't affected
+        assertEquals(RoundTripEstimator.INITIAL_TIMEOUT, mEstimator.getTimeout("2G"));
+    }
+
+    public void testTimeoutIsCapped() {
+        mEstimator.onResponse("2G", 40000);
+        mEstimator.onResponse("2G", 10000);
+        assertEquals(RoundTripEstimator.MAX_TIMEOUT, mEstimator.getTimeout("2G"));
+    }
+
+    public void testBackoffAfterTimeout() {
+        for (int i = 0; i < 20; i++) {
+            mEstimator.onResponse("WIFI", 3000);
+        }
+        final int timeout = mEstimator.getTimeout("WIFI");
+        mEstimator.onTimeout("WIFI");
+        assertEquals(timeout * 2, mEstimator.getTimeout("WIFI"));
+        mEstimator.onTimeout("WIFI");
+        assertEquals(timeout * 4, mEstimator.getTimeout("WIFI"));
+        for (int i = 0; i < 10; i++) {
+            mEstimator.onTimeout("WIFI");
+        }
+        assertEquals(RoundTripEstimator.MAX_TIMEOUT, mEstimator.getTimeout("WIFI"));
+        assertEquals(12, mEstimator.getEstimate("WIFI").getTimeoutCount());
+
+        // response resets backoff
+        mEstimator.onResponse("WIFI", 3000);
+        assertEquals(timeout, mEstimator.getTimeout("WIFI"));
+    }
+
+    public void testResponseWithoutSampleResetsBackoff() {
+        mEstimator.onResponse("WIFI", 3000);
+        final int timeout = mEstimator.getTimeout("WIFI");
+        mEstimator.onTimeout("WIFI");
+        assertEquals(timeout * 2, mEstimator.getTimeout("WIFI"));
+
+        mEstimator.resetBackoff("WIFI");
+        assertEquals(timeout, mEstimator.getTimeout("WIFI"));
+        assertEquals(1, mEstimator.getEstimate("WIFI").getSampleCount());
+
+        mEstimator.resetBackoff("2G");
+        assertNull(mEstimator.getEstimate("2G"));
+    }
+}
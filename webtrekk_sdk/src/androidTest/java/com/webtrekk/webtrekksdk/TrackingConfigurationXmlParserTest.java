@@ -26,6 +26,7 @@ import com.webtrekk.webtrekksdk.Configuration.ActivityConfiguration;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfigurationXmlParser;
+import com.webtrekk.webtrekksdk.Request.RequestStorage;
 
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -122,6 +123,24 @@ public class TrackingConfigurationXmlParserTest extends AndroidTestCase {
         assertEquals("error: config= " + config , 5000, config.getMaxRequests());
     }
 
+    /**
+     * test that requests are kept in one queue if priority weight isn't provided in the config
+     */
+    public void testRequestPriorityWeightUseDefault(){
+        TrackingConfiguration config = null;
+
+        String configString = "<?xml version=\"1.0\" encoding=\"utf-8\"?><webtrekkConfiguration><requestGeneralWeight type=\"number\">2</requestGeneralWeight></webtrekkConfiguration>";
+        try {
+            config = trackingConfigurationXmlParser.parse(configString);
+            assertNotNull(config);
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        assertEquals("error: config= " + config, 0, config.getRequestPriorityWeight());
+    }
+
     /**
      * test remove trailing slash from trackdomain
      */
@@ -157,6 +176,16 @@ public class TrackingConfigurationXmlParserTest extends AndroidTestCase {
         assertEquals(0, config.getSampling());
         assertEquals(30, config.getSendDelay());
         assertEquals(4000, config.getMaxRequests());
+        assertEquals(256, config.getRequestCacheSize());
+        assertEquals(RequestStorage.Type.FILE, config.getRequestStorage());
+        assertEquals(50, config.getRequestCompactionRatio());
+        assertEquals(604800, config.getRequestMaxAge());
+        assertEquals(100, config.getRequestBatchSize());
+        assertEquals(4, config.getRequestConcurrency());
+        assertEquals(6, config.getRequestCompressionLevel());
+        assertTrue(config.isDeferRequestsWhileRoaming());
+        assertEquals(4, config.getRequestPriorityWeight());
+        assertEquals(1, config.getRequestGeneralWeight());
 
         assertEquals(true, config.isAutoTracked());
         assertEquals(true, config.isAutoTrackAppUpdate());
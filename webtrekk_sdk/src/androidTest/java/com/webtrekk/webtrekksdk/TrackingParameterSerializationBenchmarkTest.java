@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * compares encode and decode time and size of JSON and binary forms of tracking parameters.
+ * Results are written to log.
+ */
+public class TrackingParameterSerializationBenchmarkTest extends AndroidTestCase {
+
+    private static final int ITERATIONS = 5000;
+
+    private TrackingParameter createParameter() {
+        TrackingParameter parameter = new TrackingParameter();
+        final Parameter[] keys = Parameter.values();
+        for (int i = 0; i < 20; i++) {
+            parameter.add(keys[i], "value" + i);
+        }
+        for (int i = 1; i <= 10; i++) {
+            parameter.add(Parameter.PAGE, String.valueOf(i), "page " + i);
+            parameter.add(Parameter.SESSION, String.valueOf(i), "session " + i);
+            parameter.add(Parameter.ECOM, String.valueOf(i), "über " + i);
+        }
+        return parameter;
+    }
+
+    public void testBinaryRoundTrip() throws Exception {
+        final TrackingParameter parameter = createParameter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parameter.saveToBinary(out);
+
+        final TrackingParameter restored = TrackingParameter.createFromBinary(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(parameter.getDefaultParameter(), restored.getDefaultParameter());
+        assertEquals(parameter.getPageParameter(), restored.getPageParameter());
+        assertEquals(parameter.getSessionParameter(), restored.getSessionParameter());
+        assertEquals(parameter.getEcomParameter(), restored.getEcomParameter());
+    }
+
+    public void testEncodeDecode() throws Exception {
+        final TrackingParameter parameter = createParameter();
+
+        // warm up and results for decoding
+        final String json = parameter.saveToJson().toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        parameter.saveToBinary(out);
+        final byte[] binary = out.toByteArray();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parameter.saveToJson().toString();
+        }
+        final long jsonEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            TrackingParameter.createFromJson(new JSONObject(json));
+        }
+        final long jsonDecode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            out = new ByteArrayOutputStream(512);
+            parameter.saveToBinary(out);
+            out.toByteArray();
+        }
+        final long binaryEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            TrackingParameter.createFromBinary(ByteBuffer.wrap(binary));
+        }
+        final long binaryDecode = System.nanoTime() - start;
+
+        WebtrekkLogging.log(String.format("serialization benchmark: json %d bytes encode %.1f us decode %.1f us, "
+                        + "binary %d bytes encode %.1f us decode %.1f us",
+                json.getBytes("UTF-8").length, jsonEncode / 1e3 / ITERATIONS, jsonDecode / 1e3 / ITERATIONS,
+                binary.length, binaryEncode / 1e3 / ITERATIONS, binaryDecode / 1e3 / ITERATIONS));
+        assertTrue(binary.length < json.length());
+    }
+}
@@ -21,6 +21,13 @@ package com.webtrekk.webtrekksdk;
 
 import android.test.AndroidTestCase;
 import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 public class TrackingParameterTest extends AndroidTestCase {
@@ -118,4 +125,85 @@ public class TrackingParameterTest extends AndroidTestCase {
         assertEquals(mappedTp.getPageParameter().get("1"), "");
     }
 
+    public void testBinaryRoundTrip() throws IOException {
+        TrackingParameter tp = new TrackingParameter();
+        tp.add(Parameter.ACTIVITY_NAME, "\u00fcbersicht");
+        tp.add(Parameter.FORCE_NEW_SESSION, "1");
+        tp.add(Parameter.PAGE, "1", "page");
+        tp.add(Parameter.SESSION, "2", "session");
+        tp.add(Parameter.ECOM, "3", "ecom");
+        tp.add(Parameter.AD, "4", "ad");
+        tp.add(Parameter.ACTION, "5", "action");
+        tp.add(Parameter.USER_CAT, "6", "user");
+        tp.add(Parameter.PAGE_CAT, "7", "page category");
+        tp.add(Parameter.PRODUCT_CAT, "8", "product");
+        tp.add(Parameter.MEDIA_CAT, "9", "media");
+        tp.add(Parameter.CUSTOM_USER_PAR, "10", "custom");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tp.saveToBinary(out);
+        TrackingParameter restored = TrackingParameter.createFromBinary(ByteBuffer.wrap(out.toByteArray()));
+
+        assertEquals(tp.getDefaultParameter(), restored.getDefaultParameter());
+        assertEquals(tp.getPageParameter(), restored.getPageParameter());
+        assertEquals(tp.getSessionParameter(), restored.getSessionParameter());
+        assertEquals(tp.getEcomParameter(), restored.getEcomParameter());
+        assertEquals(tp.getAdParameter(), restored.getAdParameter());
+        assertEquals(tp.getActionParameter(), restored.getActionParameter());
+        assertEquals(tp.getUserCategories(), restored.getUserCategories());
+        assertEquals(tp.getPageCategories(), restored.getPageCategories());
+        assertEquals(tp.getProductCategories(), restored.getProductCategories());
+        assertEquals(tp.getMediaCategories(), restored.getMediaCategories());
+        assertEquals(tp.getCustomUserParameters(), restored.getCustomUserParameters());
+    }
+
+    public void testLegacyJsonIsRead() throws JSONException {
+        // line of pending requests file of previous SDK versions
+        final String json = "{\"default_par\":{\"aname\":\"legacy\"},\"cp\":{\"1\":\"page\"},\"cs\":{},"
+                + "\"cb\":{\"2\":\"ecom\"},\"cc\":{},\"ck\":{},\"uc\":{},\"cg\":{},\"ca\":{},\"mg\":{},"
+                + "\"cdb\":{\"3\":\"custom\"}}";
+
+        TrackingParameter tp = TrackingParameter.createFromJson(new JSONObject(json));
+
+        assertEquals("legacy", tp.getDefaultParameter().get(Parameter.ACTIVITY_NAME));
+        assertEquals("page", tp.getPageParameter().get("1"));
+        assertEquals("ecom", tp.getEcomParameter().get("2"));
+        assertEquals("custom", tp.getCustomUserParameters().get("3"));
+        assertTrue(tp.getSessionParameter().isEmpty());
+    }
+
+    /**
+     * @param defaultParameters version and default parameters, empty other parameter maps are added
+     */
+    private void assertBinaryIsRejected(byte[] defaultParameters) {
+        final ByteBuffer data = ByteBuffer.allocate(defaultParameters.length + 10);
+        data.put(defaultParameters);
+        data.rewind();
+        try {
+            TrackingParameter.createFromBinary(data);
+            fail("corrupted parameter is read");
+        } catch (IOException e) {
+            // corrupted record is skipped by caller
+        }
+    }
+
+    public void testCorruptedBinaryIsRejected() {
+        // version 1, one default parameter with ordinal -1
+        assertBinaryIsRejected(new byte[]{1, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0});
+        // unknown ordinal
+        assertBinaryIsRejected(new byte[]{1, 1, 0x7F, 0});
+        // unknown version
+        assertBinaryIsRejected(new byte[]{2, 0});
+        // valid parameter is read
+        ByteBuffer valid = ByteBuffer.allocate(15);
+        valid.put(new byte[]{1, 1, 0, 1, 'a'});
+        valid.rewind();
+        try {
+            assertEquals(1, TrackingParameter.createFromBinary(valid).getDefaultParameter().size());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        // truncated string
+        assertBinaryIsRejected(new byte[]{1, 1, 0, 5, 'a'});
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+
+public class PinConnectionValidatorTest extends AndroidTestCase {
+
+    // self signed certificate valid till 2126
+    private static final String CERTIFICATE = "-----BEGIN CERTIFICATE-----\n" +
+            "MIIBRzCB7qADAgECAgkA4OUszkafLw4wCgYIKoZIzj0EAwIwFzEVMBMGA1UEAxMM\n" +
+            "cGlubmluZy50ZXN0MCAXDTI2MTAxODEzNDcwMVoYDzIxMjYwOTI0MTM0NzAxWjAX\n" +
+            "MRUwEwYDVQQDEwxwaW5uaW5nLnRlc3QwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNC\n" +
+            "AATmqNRcirn4nQkswSBODwkxqlRaPxBRZedDTNAOrHLMXywiyGHo7zlBYFJ6Vn87\n" +
+            "AjuMYKIBMJewvGX/9zD7jLFeoyEwHzAdBgNVHQ4EFgQUpWGffyVL1S0FANni1+ad\n" +
+            "UhGhhoswCgYIKoZIzj0EAwIDSAAwRQIgar9+gbaCsO61U0VTS4sCTO665QEwNWvt\n" +
+            "jlXp1d2WsNUCIQDkZl9X3RBPWL9MXzhCEE4SDJK+HWOVZ74ZyZdSbwvT9w==\n" +
+            "-----END CERTIFICATE-----\n";
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    /**
+     * trust checker that accepts every chain and counts checks
+     */
+    private static class CountingTrustChecker implements PinConnectionValidator.TrustChecker {
+        int mChecks;
+
+        @Override
+        public List<X509Certificate> checkServerTrusted(X509Certificate[] chain, String authType, String host) {
+            mChecks++;
+            return Arrays.asList(chain);
+        }
+    }
+
+    /**
+     * connection that returns certificates without network
+     */
+    private static class CertificateConnection extends HttpsURLConnection {
+        private final Certificate[] mCertificates;
+
+        CertificateConnection(String host, Certificate[] certificates) throws IOException {
+            super(new URL("https://" + host + "/"));
+            mCertificates = certificates;
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return null;
+        }
+
+        @Override
+        public Certificate[] getLocalCertificates() {
+            return null;
+        }
+
+        @Override
+        public Certificate[] getServerCertificates() {
+            return mCertificates.clone();
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+
+    private Certificate[] mChain;
+    private String mPin;
+    private CountingTrustChecker mTrustChecker;
+    private long mTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        mChain = new Certificate[]{factory.generateCertificate(new ByteArrayInputStream(CERTIFICATE.getBytes("US-ASCII")))};
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(mChain[0].getPublicKey().getEncoded());
+        mPin = Base64.encodeToString(digest, Base64.NO_WRAP);
+        mTrustChecker = new CountingTrustChecker();
+        mTime = System.currentTimeMillis();
+    }
+
+    private PinConnectionValidator createValidator(String pin) {
+        return new PinConnectionValidator(Collections.singleton(pin), mTrustChecker) {
+            @Override
+            long currentTimeMillis() {
+                return mTime;
+            }
+        };
+    }
+
+    public void testValidChainIsCached() throws IOException {
+        PinConnectionValidator validator = createValidator(mPin);
+        validator.validatePinning(new CertificateConnection("q3.webtrekk.net", mChain));
+        validator.validatePinning(new CertificateConnection("q3.webtrekk.net", mChain));
+        assertEquals(1, mTrustChecker.mChecks);
+
+        // other chain of the same host is checked again
+        validator.validatePinning(new CertificateConnection("q3.webtrekk.net", new Certificate[]{mChain[0], mChain[0]}));
+        assertEquals(2, mTrustChecker.mChecks);
+    }
+
+    public void testValidationExpires() throws IOException {
+        PinConnectionValidator validator = createValidator(mPin);
+        validator.validatePinning(new CertificateConnection("q3.webtrekk.net", mChain));
+
+        mTime += HOUR - 1;
+        validator.validatePinning(new CertificateConnection("q3.webtrekk.net", mChain));
+        assertEquals(1, mTrustChecker.mChecks);
+
+        mTime += 1;
+        validator.validatePinning(new CertificateConnection("q3.webtrekk.net", mChain));
+        assertEquals(2, mTrustChecker.mChecks);
+    }
+
+    public void testCacheIsClearedAfterMaxHosts() throws IOException {
+        PinConnectionValidator validator = createValidator(mPin);
+        for (int i = 0; i < 16; i++) {
+            validator.validatePinning(new CertificateConnection("host" + i, mChain));
+        }
+        validator.validatePinning(new CertificateConnection("host0", mChain));
+        assertEquals(16, mTrustChecker.mChecks);
+
+        // 17th host evicts all hosts
+        validator.validatePinning(new CertificateConnection("host16", mChain));
+        validator.validatePinning(new CertificateConnection("host16", mChain));
+        assertEquals(17, mTrustChecker.mChecks);
+        validator.validatePinning(new CertificateConnection("host0", mChain));
+        assertEquals(18, mTrustChecker.mChecks);
+    }
+
+    public void testMismatchThrowsWithChain() throws IOException {
+        PinConnectionValidator validator = createValidator("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+        for (int i = 1; i <= 2; i++) {
+            try {
+                validator.validatePinning(new CertificateConnection("q3.webtrekk.net", mChain));
+                fail("pinning failure isn't detected");
+            } catch (SSLPeerUnverifiedException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("sha256/" + mPin));
+            }
+            // failed chain isn't cached
+            assertEquals(i, mTrustChecker.mChecks);
+        }
+    }
+}
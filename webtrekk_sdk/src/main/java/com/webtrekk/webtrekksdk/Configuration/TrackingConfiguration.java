@@ -18,6 +18,8 @@
 
 package com.webtrekk.webtrekksdk.Configuration;
 
+import com.webtrekk.webtrekksdk.Request.RequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
 import com.webtrekk.webtrekksdk.TrackingParameter;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
@@ -42,6 +44,27 @@ public class TrackingConfiguration {
     private int sampling = 0;
     private int sendDelay = 300;
     private int maxRequests = 5000;
+    private RequestUrlStore.OverflowPolicy requestOverflowPolicy = RequestUrlStore.OverflowPolicy.DROP_OLDEST;
+    // size of not saved requests in memory in KB, 0 - is defined by device memory
+    private int requestCacheSize;
+    private RequestStorage.Type requestStorage = RequestStorage.Type.FILE;
+    // size of sent requests in file in percent of not sent requests size, after that file is compacted
+    private int requestCompactionRatio = 100;
+    // age of request in seconds after which it isn't sent, 0 - requests don't expire
+    private int requestMaxAge;
+    // number of requests that are sent in one POST request to batch endpoint, 0 - every request is sent separately
+    private int requestBatchSize;
+    // maximum number of requests that are sent in parallel
+    private int requestConcurrency = 1;
+    // gzip level of batch request bodies from 1 to 9, 0 - bodies aren't compressed
+    private int requestCompressionLevel;
+    // requests aren't sent automatically while device is roaming
+    private boolean deferRequestsWhileRoaming;
+    // share of install, CDB and crash requests in sent requests if general requests are waiting as well,
+    // 0 - all requests are kept in one queue, which is default
+    private int requestPriorityWeight;
+    // share of general requests in sent requests if priority requests are waiting as well
+    private int requestGeneralWeight = 1;
 
     // activitylifycycle callbacks for automated activity tracking
     private boolean autoTracked = true;
@@ -236,6 +259,94 @@ public class TrackingConfiguration {
         this.maxRequests = maxRequests;
     }
 
+    public RequestUrlStore.OverflowPolicy getRequestOverflowPolicy() {
+        return requestOverflowPolicy;
+    }
+
+    public void setRequestOverflowPolicy(RequestUrlStore.OverflowPolicy requestOverflowPolicy) {
+        this.requestOverflowPolicy = requestOverflowPolicy;
+    }
+
+    public int getRequestCacheSize() {
+        return requestCacheSize;
+    }
+
+    public void setRequestCacheSize(int requestCacheSize) {
+        this.requestCacheSize = requestCacheSize;
+    }
+
+    public int getRequestCompactionRatio() {
+        return requestCompactionRatio;
+    }
+
+    public void setRequestCompactionRatio(int requestCompactionRatio) {
+        this.requestCompactionRatio = requestCompactionRatio;
+    }
+
+    public int getRequestMaxAge() {
+        return requestMaxAge;
+    }
+
+    public void setRequestMaxAge(int requestMaxAge) {
+        this.requestMaxAge = requestMaxAge;
+    }
+
+    public int getRequestBatchSize() {
+        return requestBatchSize;
+    }
+
+    public void setRequestBatchSize(int requestBatchSize) {
+        this.requestBatchSize = requestBatchSize;
+    }
+
+    public int getRequestConcurrency() {
+        return requestConcurrency;
+    }
+
+    public void setRequestConcurrency(int requestConcurrency) {
+        this.requestConcurrency = requestConcurrency;
+    }
+
+    public int getRequestCompressionLevel() {
+        return requestCompressionLevel;
+    }
+
+    public void setRequestCompressionLevel(int requestCompressionLevel) {
+        this.requestCompressionLevel = requestCompressionLevel;
+    }
+
+    public boolean isDeferRequestsWhileRoaming() {
+        return deferRequestsWhileRoaming;
+    }
+
+    public void setDeferRequestsWhileRoaming(boolean deferRequestsWhileRoaming) {
+        this.deferRequestsWhileRoaming = deferRequestsWhileRoaming;
+    }
+
+    public int getRequestPriorityWeight() {
+        return requestPriorityWeight;
+    }
+
+    public void setRequestPriorityWeight(int requestPriorityWeight) {
+        this.requestPriorityWeight = requestPriorityWeight;
+    }
+
+    public int getRequestGeneralWeight() {
+        return requestGeneralWeight;
+    }
+
+    public void setRequestGeneralWeight(int requestGeneralWeight) {
+        this.requestGeneralWeight = requestGeneralWeight;
+    }
+
+    public RequestStorage.Type getRequestStorage() {
+        return requestStorage;
+    }
+
+    public void setRequestStorage(RequestStorage.Type requestStorage) {
+        this.requestStorage = requestStorage;
+    }
+
 
 
     public Map<String, ActivityConfiguration> getActivityConfigurations() {
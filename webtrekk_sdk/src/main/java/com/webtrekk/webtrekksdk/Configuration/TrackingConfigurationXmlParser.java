@@ -31,6 +31,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 
+import com.webtrekk.webtrekksdk.Request.RequestStorage;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
 import com.webtrekk.webtrekksdk.TrackingParameter;
 import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
@@ -103,6 +105,153 @@ public class TrackingConfigurationXmlParser {
             }
         }, Integer.class),
 
+        REQUEST_OVERFLOW_POLICY(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                String policy = (String) value;
+
+                if (policy.equals("dropOldest")) {
+                    config.setRequestOverflowPolicy(RequestUrlStore.OverflowPolicy.DROP_OLDEST);
+                } else if (policy.equals("dropNewest")) {
+                    config.setRequestOverflowPolicy(RequestUrlStore.OverflowPolicy.DROP_NEWEST);
+                } else if (policy.equals("dropLowestPriority")) {
+                    config.setRequestOverflowPolicy(RequestUrlStore.OverflowPolicy.DROP_LOWEST_PRIORITY);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, String.class),
+
+        REQUEST_CACHE_SIZE(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer cacheSize = (Integer) value;
+
+                if (cacheSize > 0) {
+                    config.setRequestCacheSize(cacheSize);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_COMPACTION_RATIO(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer ratio = (Integer) value;
+
+                if (ratio > 0) {
+                    config.setRequestCompactionRatio(ratio);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_MAX_AGE(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer maxAge = (Integer) value;
+
+                if (maxAge >= 0) {
+                    config.setRequestMaxAge(maxAge);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_BATCH_SIZE(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer batchSize = (Integer) value;
+
+                if (batchSize >= 0) {
+                    config.setRequestBatchSize(batchSize);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_CONCURRENCY(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer concurrency = (Integer) value;
+
+                if (concurrency > 0) {
+                    config.setRequestConcurrency(concurrency);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_COMPRESSION_LEVEL(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer level = (Integer) value;
+
+                if (level >= 0 && level <= 9) {
+                    config.setRequestCompressionLevel(level);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        DEFER_REQUESTS_WHILE_ROAMING(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Boolean defer = (Boolean) value;
+
+                config.setDeferRequestsWhileRoaming(defer);
+            }
+        }, Boolean.class),
+
+        REQUEST_PRIORITY_WEIGHT(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer weight = (Integer) value;
+
+                if (weight >= 0) {
+                    config.setRequestPriorityWeight(weight);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_GENERAL_WEIGHT(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer weight = (Integer) value;
+
+                if (weight > 0) {
+                    config.setRequestGeneralWeight(weight);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, Integer.class),
+
+        REQUEST_STORAGE(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                String storage = (String) value;
+
+                if (storage.equals("file")) {
+                    config.setRequestStorage(RequestStorage.Type.FILE);
+                } else if (storage.equals("sqlite")) {
+                    config.setRequestStorage(RequestStorage.Type.SQLITE);
+                } else if (storage.equals("memory")) {
+                    config.setRequestStorage(RequestStorage.Type.MEMORY);
+                } else {
+                    WebtrekkLogging.log(errorMessage);
+                }
+            }
+        }, String.class),
+
         SEND_DELAY(new ParameterAction(){
             @Override
             public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
@@ -414,6 +563,17 @@ public class TrackingConfigurationXmlParser {
         actionMap.put("trackId", ParType.TRACK_ID);
         actionMap.put("sampling", ParType.SAMPLING);
         actionMap.put("maxRequests", ParType.MAX_REQUEST);
+        actionMap.put("requestOverflowPolicy", ParType.REQUEST_OVERFLOW_POLICY);
+        actionMap.put("requestCacheSize", ParType.REQUEST_CACHE_SIZE);
+        actionMap.put("requestStorage", ParType.REQUEST_STORAGE);
+        actionMap.put("requestCompactionRatio", ParType.REQUEST_COMPACTION_RATIO);
+        actionMap.put("requestMaxAge", ParType.REQUEST_MAX_AGE);
+        actionMap.put("requestBatchSize", ParType.REQUEST_BATCH_SIZE);
+        actionMap.put("requestConcurrency", ParType.REQUEST_CONCURRENCY);
+        actionMap.put("requestCompressionLevel", ParType.REQUEST_COMPRESSION_LEVEL);
+        actionMap.put("deferRequestsWhileRoaming", ParType.DEFER_REQUESTS_WHILE_ROAMING);
+        actionMap.put("requestPriorityWeight", ParType.REQUEST_PRIORITY_WEIGHT);
+        actionMap.put("requestGeneralWeight", ParType.REQUEST_GENERAL_WEIGHT);
         actionMap.put("sendDelay", ParType.SEND_DELAY);
         actionMap.put("autoTracked", ParType.AUTO_TRACKED);
         actionMap.put("autoTrackAppUpdate", ParType.AUTO_TRACK_UPDATE);
@@ -153,7 +153,8 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
         if (causeStack != null)
           trackingParameter.add(Parameter.ACTION, "915", normalizeField(causeStack));
 
-        TrackingRequest request = new TrackingRequest(trackingParameter, mRequestFactory.getTrackingConfiguration(), TrackingRequest.RequestType.ECXEPTION);
+        TrackingRequest request = new TrackingRequest(trackingParameter, mRequestFactory.getTrackingConfiguration(),
+                type == Type.FATAL.ordinal() ? TrackingRequest.RequestType.FATAL_EXCEPTION : TrackingRequest.RequestType.ECXEPTION);
         mRequestFactory.addRequest(request);
      }
 
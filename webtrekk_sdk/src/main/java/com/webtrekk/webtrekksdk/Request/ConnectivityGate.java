@@ -0,0 +1,175 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+/**
+ * suspends sending of requests while device is offline and optionally while it is roaming.
+ * Listener is called when connection is back, so requests are sent at once instead of waiting for
+ * next send interval. Network callback is used on Lollipop and newer, connectivity broadcast before it.
+ */
+public class ConnectivityGate {
+
+    private static final String OFFLINE = "offline";
+
+    private final Context mContext;
+    private final boolean mDeferWhileRoaming;
+    private final Runnable mOnConnected;
+    // ConnectivityManager.NetworkCallback, isn't typed as it doesn't exist before Lollipop
+    private Object mNetworkCallback;
+    private BroadcastReceiver mReceiver;
+    private volatile boolean mRoaming;
+
+    /**
+     * @param deferWhileRoaming true if requests aren't sent while device is roaming
+     * @param onConnected is called when device is connected or stops roaming, it is called on main or
+     *                    connectivity thread, so it should only schedule sending
+     */
+    public ConnectivityGate(Context context, boolean deferWhileRoaming, Runnable onConnected) {
+        mContext = context.getApplicationContext() == null ? context : context.getApplicationContext();
+        mDeferWhileRoaming = deferWhileRoaming;
+        mOnConnected = onConnected;
+    }
+
+    /**
+     * starts listening to connectivity changes
+     */
+    public void start() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                registerNetworkCallback();
+            } else {
+                mReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        onConnectivityChanged();
+                    }
+                };
+                mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+        } catch (SecurityException e) {
+            WebtrekkLogging.log("can't listen to connectivity changes, ACCESS_NETWORK_STATE permission is missed", e);
+        }
+    }
+
+    /**
+     * stops listening to connectivity changes
+     */
+    public void stop() {
+        try {
+            if (mNetworkCallback != null) {
+                unregisterNetworkCallback();
+            }
+            if (mReceiver != null) {
+                mContext.unregisterReceiver(mReceiver);
+            }
+        } catch (RuntimeException e) {
+            WebtrekkLogging.log("can't stop listening to connectivity changes", e);
+        }
+        mNetworkCallback = null;
+        mReceiver = null;
+    }
+
+    /**
+     * @return false if device is offline or roaming while sending in roaming is deferred. Returns
+     * true if connectivity state isn't available.
+     */
+    public boolean canSend() {
+        try {
+            if (OFFLINE.equals(HelperFunctions.getConnectionString(mContext))) {
+                WebtrekkLogging.log("device is offline, sending is suspended");
+                return false;
+            }
+            if (mDeferWhileRoaming && HelperFunctions.isRoaming(mContext)) {
+                WebtrekkLogging.log("device is roaming, sending is deferred");
+                return false;
+            }
+        } catch (SecurityException e) {
+            // ACCESS_NETWORK_STATE permission is missed
+        }
+        return true;
+    }
+
+    /**
+     * @return connection type as it is returned by {@link HelperFunctions#getConnectionString},
+     * "unknown" if it isn't available
+     */
+    public String getConnectionType() {
+        try {
+            return HelperFunctions.getConnectionString(mContext);
+        } catch (SecurityException e) {
+            return "unknown";
+        }
+    }
+
+    private void onConnectivityChanged() {
+        if (canSend()) {
+            mOnConnected.run();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerNetworkCallback() {
+        final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                onConnectivityChanged();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                if (!mDeferWhileRoaming || Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                    return;
+                }
+                // capabilities are changed often, only end of roaming is interesting
+                final boolean roaming = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+                if (mRoaming && !roaming) {
+                    onConnectivityChanged();
+                }
+                mRoaming = roaming;
+            }
+        };
+
+        final NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        getConnectivityManager().registerNetworkCallback(request, callback);
+        mNetworkCallback = callback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void unregisterNetworkCallback() {
+        getConnectivityManager().unregisterNetworkCallback((ConnectivityManager.NetworkCallback) mNetworkCallback);
+    }
+
+    private ConnectivityManager getConnectivityManager() {
+        return (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+}
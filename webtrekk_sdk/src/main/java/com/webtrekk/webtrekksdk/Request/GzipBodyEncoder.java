@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * compresses bodies of batch requests to gzip format. Deflater and output buffer are kept between
+ * bodies, so compression of next batch doesn't allocate anything if it isn't bigger than previous
+ * one. Encoder isn't thread safe.
+ */
+class GzipBodyEncoder {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mOutput = new byte[16 * 1024];
+    private int mSize;
+
+    /**
+     * @param level compression level from 1 (fastest) to 9 (smallest)
+     */
+    GzipBodyEncoder(int level) {
+        // raw deflate stream, gzip header and trailer are written by encoder
+        mDeflater = new Deflater(level, true);
+    }
+
+    /**
+     * compresses body, result is available by {@link #getOutput()} till next call
+     *
+     * @return size of compressed body
+     */
+    int encode(byte[] body) {
+        mDeflater.reset();
+        mCrc.reset();
+        mCrc.update(body, 0, body.length);
+
+        writeShort(0, GZIP_MAGIC);
+        mOutput[2] = Deflater.DEFLATED;
+        for (int i = 3; i < HEADER_SIZE; i++) {
+            mOutput[i] = 0;
+        }
+        mSize = HEADER_SIZE;
+
+        mDeflater.setInput(body);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            if (mSize == mOutput.length) {
+                grow(mOutput.length * 2);
+            }
+            mSize += mDeflater.deflate(mOutput, mSize, mOutput.length - mSize);
+        }
+
+        if (mSize + TRAILER_SIZE > mOutput.length) {
+            grow(mSize + TRAILER_SIZE);
+        }
+        writeInt(mSize, (int) mCrc.getValue());
+        writeInt(mSize + 4, body.length);
+        mSize += TRAILER_SIZE;
+        return mSize;
+    }
+
+    byte[] getOutput() {
+        return mOutput;
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    /**
+     * releases native memory of deflater, encoder can't be used after that
+     */
+    void release() {
+        mDeflater.end();
+    }
+
+    private void grow(int size) {
+        final byte[] output = new byte[size];
+        System.arraycopy(mOutput, 0, output, 0, mSize);
+        mOutput = output;
+    }
+
+    // gzip uses little endian
+    private void writeShort(int position, int value) {
+        mOutput[position] = (byte) value;
+        mOutput[position + 1] = (byte) (value >> 8);
+    }
+
+    private void writeInt(int position, int value) {
+        writeShort(position, value);
+        writeShort(position + 2, value >> 16);
+    }
+}
@@ -0,0 +1,987 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the request journal. Layout of the file:
+ *
+ * header     - magic, version, flags, sequence, creation time, record count, head index (32 bytes)
+ * dictionary - [int length][url dictionary], see {@link UrlDictionary}. Version 1 has no dictionary.
+ * records    - [short record magic][int length][byte request type][int CRC32 of type, time and data]
+ *              [int enqueue time in seconds from segment creation][url encoded with dictionary]
+ *              repeated record count times. Version 3 records have no time, version 1 and 2
+ *              records have only [int length][byte request type][data]. Time of records without
+ *              time is segment creation time.
+ * index      - only for sealed segments: int offset of every record, record count, index magic
+ *
+ * Segment is append only. Head index is number of records that are already sent. As soon as head
+ * index reaches record count of sealed segment the whole file can be deleted.
+ *
+ * Not sealed segment has no index at the end, so its record offsets are saved to sidecar file
+ * with the same name and .idx suffix. Without sidecar offsets are restored by going through records.
+ *
+ * Sent records at the beginning of segment are removed by {@link #compact} if they take too much space.
+ *
+ * Record magic and checksum allow to skip corrupted part of segment and continue with the next valid
+ * record, so only corrupted records are lost. Lost records are returned as null by {@link #read}.
+ * Segment with lost records is sealed and new records aren't appended to it.
+ *
+ * Records that are older than given time are returned as {@link RequestJournal#EXPIRED_URL} without
+ * decoding. Compaction replaces them with records without data.
+ *
+ * Records can be read while other thread appends to the segment, file access is synchronized on segment.
+ */
+class JournalSegment {
+
+    static final String FILE_SUFFIX = ".seg";
+    static final String INDEX_FILE_SUFFIX = ".idx";
+    // file of compacted segment before it replaces segment file
+    static final String TEMP_FILE_SUFFIX = ".tmp";
+    static final int MAGIC = 0x57544A53; // "WTJS"
+    static final int INDEX_MAGIC = 0x57544A49; // "WTJI"
+    static final short VERSION = 4;
+    // segments of version 1 have no dictionary and keep urls as UTF-8
+    static final short VERSION_NO_DICTIONARY = 1;
+    // segments of version 1 and 2 have no record magic and checksum
+    static final short VERSION_NO_CHECKSUM = 2;
+    // segments of version 3 and older have no record time
+    static final short VERSION_NO_TIME = 3;
+    static final int HEADER_SIZE = 32;
+    static final short FLAG_SEALED = 1;
+    static final short RECORD_MAGIC = 0x5752; // "WR"
+    // magic, length, request type, checksum and time
+    static final int RECORD_HEADER_SIZE = 15;
+    // magic, length, request type and checksum. Checksum covers everything after it.
+    private static final int CHECKSUM_RECORD_HEADER_SIZE = 11;
+    // length and request type
+    private static final int LEGACY_RECORD_HEADER_SIZE = 5;
+    // offset of record that is lost because of corruption
+    private static final int LOST_OFFSET = -1;
+    // type of record which data is removed because it is expired
+    private static final byte TYPE_EXPIRED = -1;
+
+    private static final int FLAGS_OFFSET = 6;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int RECORD_COUNT_OFFSET = 24;
+    private static final int HEAD_INDEX_OFFSET = 28;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final private File mFile;
+    final private long mSequence;
+    final private long mCreatedTime;
+    final private short mVersion;
+    // offset of the first record
+    final private int mDataStart;
+    // number of records that were removed from the beginning by compaction since segment is opened.
+    // Record indexes outside of the class don't change after compaction.
+    private int mIndexBase;
+    private boolean mDeleted;
+    // loaded on demand, null for version 1
+    private UrlDictionary mDictionary;
+    private short mFlags;
+    private int mRecordCount;
+    private int mHeadIndex;
+
+    // offsets of records in file, loaded on demand
+    private int[] mOffsets;
+    // end of committed data, valid only if index is loaded
+    private int mDataEnd;
+    // number of records that are lost because of corruption, valid only if index is loaded
+    private int mLostCount;
+    // number of record offsets that are saved to sidecar index
+    private int mSavedIndexCount;
+    // is open while segment isn't sealed and records are appended
+    private RandomAccessFile mWriteFile;
+    final private CRC32 mChecksum = new CRC32();
+
+    private JournalSegment(File file, short version, int dataStart, long sequence, long createdTime, short flags, int recordCount, int headIndex) {
+        mFile = file;
+        mVersion = version;
+        mDataStart = dataStart;
+        mSequence = sequence;
+        mCreatedTime = createdTime;
+        mFlags = flags;
+        mRecordCount = recordCount;
+        mHeadIndex = headIndex;
+    }
+
+    static String fileName(long sequence) {
+        return String.format(Locale.US, "%010d", sequence) + FILE_SUFFIX;
+    }
+
+    /**
+     * creates new empty segment file with header and dictionary
+     */
+    @NonNull
+    static JournalSegment create(File directory, long sequence, @NonNull UrlDictionary dictionary) throws IOException {
+        final long now = System.currentTimeMillis();
+        final File file = new File(directory, fileName(sequence));
+        final byte[] dictionaryBytes = dictionary.toBytes();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 + dictionaryBytes.length);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putLong(sequence);
+        buffer.putLong(now);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(dictionaryBytes.length);
+        buffer.put(dictionaryBytes);
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+
+        JournalSegment segment = new JournalSegment(file, VERSION, buffer.capacity(), sequence, now, (short) 0, 0, 0);
+        segment.mDictionary = dictionary;
+        segment.mOffsets = new int[16];
+        segment.mDataEnd = segment.mDataStart;
+        return segment;
+    }
+
+    /**
+     * opens existing segment. Reads header only, records index is loaded when it is required.
+     */
+    @NonNull
+    static JournalSegment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+                throw new IOException("not a journal segment: " + file.getName());
+            }
+            final short version = raf.readShort();
+            if (version < VERSION_NO_DICTIONARY || version > VERSION) {
+                throw new IOException("unsupported journal segment version " + version + ": " + file.getName());
+            }
+            final short flags = raf.readShort();
+            final long sequence = raf.readLong();
+            final long createdTime = raf.readLong();
+            final int recordCount = raf.readInt();
+            final int headIndex = raf.readInt();
+
+            if (recordCount < 0 || headIndex < 0 || headIndex > recordCount) {
+                throw new IOException("corrupted journal segment header: " + file.getName());
+            }
+
+            int dataStart = HEADER_SIZE;
+            if (version != VERSION_NO_DICTIONARY) {
+                dataStart += 4 + raf.readInt();
+                if (dataStart < HEADER_SIZE + 4 || dataStart > raf.length()) {
+                    throw new IOException("corrupted journal segment dictionary: " + file.getName());
+                }
+            }
+
+            return new JournalSegment(file, version, dataStart, sequence, createdTime, flags, recordCount, headIndex);
+        } finally {
+            raf.close();
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    long getCreatedTime() {
+        return mCreatedTime;
+    }
+
+    boolean isSealed() {
+        return (mFlags & FLAG_SEALED) != 0;
+    }
+
+    synchronized int getRecordCount() {
+        return mIndexBase + mRecordCount;
+    }
+
+    synchronized int getHeadIndex() {
+        return mIndexBase + mHeadIndex;
+    }
+
+    // number of not sent records
+    synchronized int available() {
+        return mRecordCount - mHeadIndex;
+    }
+
+    synchronized boolean isConsumed() {
+        return mHeadIndex >= mRecordCount;
+    }
+
+    synchronized int getDataSize() throws IOException {
+        loadIndex();
+        return mDataEnd - mDataStart;
+    }
+
+    /**
+     * loads records index either from the end of sealed segment or by going through records.
+     * Records that can't be found are marked as lost.
+     */
+    private void loadIndex() throws IOException {
+        if (mOffsets != null) {
+            return;
+        }
+
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long fileLength = channel.size();
+            int[] offsets = new int[Math.max(16, mRecordCount)];
+
+            if (!isSealed() || !readSealedIndex(channel, fileLength, offsets)) {
+                scanRecords(channel, fileLength, offsets, isSealed() ? 0 : readSidecarIndex(offsets));
+            }
+
+            mOffsets = offsets;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * reads index from the end of sealed segment
+     *
+     * @return false if index is corrupted
+     */
+    private boolean readSealedIndex(FileChannel channel, long fileLength, int[] offsets) throws IOException {
+        final long indexStart = fileLength - 8 - 4L * mRecordCount;
+        if (indexStart < mDataStart) {
+            WebtrekkLogging.log("corrupted journal segment index, records are scanned: " + mFile.getName());
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (fileLength - indexStart));
+        readFully(channel, buffer, indexStart);
+        buffer.flip();
+        buffer.position(buffer.limit() - 8);
+        if (buffer.getInt() != mRecordCount || buffer.getInt() != INDEX_MAGIC) {
+            WebtrekkLogging.log("corrupted journal segment index, records are scanned: " + mFile.getName());
+            return false;
+        }
+
+        buffer.rewind();
+        buffer.asIntBuffer().get(offsets, 0, mRecordCount);
+        for (int i = 0; i < mRecordCount; i++) {
+            if (offsets[i] == LOST_OFFSET) {
+                mLostCount++;
+            }
+        }
+        mDataEnd = (int) indexStart;
+        return true;
+    }
+
+    /**
+     * restores record offsets by going through records after known ones. Corrupted data is skipped
+     * till next valid record. If less records than record count are found, missed records are
+     * marked as lost at the end of index, so the number of records is the same as in header.
+     *
+     * @param knownCount number of offsets that are known already
+     */
+    private void scanRecords(FileChannel channel, long fileLength, int[] offsets, int knownCount) throws IOException {
+        // last known record is checked again to find its end
+        int record = Math.max(0, knownCount - 1);
+        final int regionStart = knownCount > 0 ? offsets[record] : mDataStart;
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, fileLength - regionStart));
+        readFully(channel, buffer, regionStart);
+        final byte[] data = buffer.array();
+
+        int position = 0;
+        int validEnd = 0;
+        while (record < mRecordCount && position < data.length) {
+            final int length = getValidRecordLength(data, position, data.length);
+            if (length >= 0) {
+                offsets[record++] = regionStart + position;
+                position += getRecordHeaderSize() + length;
+                validEnd = position;
+            } else if (hasChecksum()) {
+                WebtrekkLogging.log("corrupted journal segment record " + record + " at " + (regionStart + position) + ": " + mFile.getName());
+                position = findNextRecord(data, position + 1);
+            } else {
+                break;
+            }
+        }
+
+        if (record < mRecordCount) {
+            mLostCount = mRecordCount - record;
+            WebtrekkLogging.log("journal segment " + mFile.getName() + " lost records: " + (mRecordCount - record));
+            Arrays.fill(offsets, record, mRecordCount, LOST_OFFSET);
+        }
+        // new records are appended after last valid one
+        mDataEnd = regionStart + validEnd;
+    }
+
+    private boolean hasChecksum() {
+        return mVersion > VERSION_NO_CHECKSUM;
+    }
+
+    private boolean hasTime() {
+        return mVersion > VERSION_NO_TIME;
+    }
+
+    private int getRecordHeaderSize() {
+        if (hasTime()) {
+            return RECORD_HEADER_SIZE;
+        }
+        return hasChecksum() ? CHECKSUM_RECORD_HEADER_SIZE : LEGACY_RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * @return enqueue time of record in data in milliseconds
+     */
+    private long getRecordTime(byte[] data, int position) {
+        if (!hasTime()) {
+            return mCreatedTime;
+        }
+        return mCreatedTime + 1000L * ByteBuffer.wrap(data).getInt(position + CHECKSUM_RECORD_HEADER_SIZE);
+    }
+
+    private int getTimeDelta(long time) {
+        return (int) ((time - mCreatedTime) / 1000);
+    }
+
+    /**
+     * puts record header with checksum to buffer, data should be put after it
+     */
+    private void putRecordHeader(ByteBuffer buffer, byte type, int timeDelta, byte[] data, int offset, int length) {
+        mChecksum.reset();
+        mChecksum.update(type);
+        if (hasTime()) {
+            mChecksum.update(timeDelta >>> 24);
+            mChecksum.update(timeDelta >>> 16);
+            mChecksum.update(timeDelta >>> 8);
+            mChecksum.update(timeDelta);
+        }
+        mChecksum.update(data, offset, length);
+
+        buffer.putShort(RECORD_MAGIC);
+        buffer.putInt(length);
+        buffer.put(type);
+        buffer.putInt((int) mChecksum.getValue());
+        if (hasTime()) {
+            buffer.putInt(timeDelta);
+        }
+    }
+
+    /**
+     * @return position of next record with valid magic and checksum or end of data
+     */
+    private int findNextRecord(byte[] data, int position) {
+        for (; position < data.length; position++) {
+            if (getValidRecordLength(data, position, data.length) >= 0) {
+                return position;
+            }
+        }
+        return data.length;
+    }
+
+    /**
+     * checks that whole record is in data and its checksum is correct
+     *
+     * @return length of record data or -1 if record is corrupted
+     */
+    private int getValidRecordLength(byte[] data, int position, int limit) {
+        final int headerSize = getRecordHeaderSize();
+        if (position + headerSize > limit) {
+            return -1;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (!hasChecksum()) {
+            final int length = buffer.getInt(position);
+            return length < 0 || length > limit - position - headerSize ? -1 : length;
+        }
+
+        if (buffer.getShort(position) != RECORD_MAGIC) {
+            return -1;
+        }
+        final int length = buffer.getInt(position + 2);
+        if (length < 0 || length > limit - position - headerSize) {
+            return -1;
+        }
+
+        mChecksum.reset();
+        mChecksum.update(data, position + 6, 1);
+        mChecksum.update(data, position + CHECKSUM_RECORD_HEADER_SIZE, headerSize - CHECKSUM_RECORD_HEADER_SIZE + length);
+        return (int) mChecksum.getValue() == buffer.getInt(position + 7) ? length : -1;
+    }
+
+    /**
+     * reads from channel at given position till buffer is full
+     */
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of journal segment: " + mFile.getName());
+            }
+        }
+    }
+
+    private File getIndexFile() {
+        return new File(mFile.getParentFile(), mFile.getName() + INDEX_FILE_SUFFIX);
+    }
+
+    /**
+     * reads offsets from sidecar index file
+     *
+     * @return number of offsets that are read
+     */
+    private int readSidecarIndex(int[] offsets) {
+        final File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return 0;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                final int count = in.readInt();
+                if (in.readInt() != INDEX_MAGIC || count < 0 || count > mRecordCount) {
+                    return 0;
+                }
+                for (int i = 0; i < count; i++) {
+                    offsets[i] = in.readInt();
+                    if (offsets[i] < (i == 0 ? mDataStart : offsets[i - 1] + 1)) {
+                        return 0;
+                    }
+                }
+                mSavedIndexCount = count;
+                return count;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't read journal index, records are scanned: " + indexFile.getName(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * saves record offsets of not sealed segment to sidecar index file, so they don't need to be
+     * restored at next start
+     */
+    synchronized void saveIndex() throws IOException {
+        if (isSealed() || mOffsets == null || mSavedIndexCount == mRecordCount || mLostCount > 0) {
+            return;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile())));
+        try {
+            out.writeInt(mRecordCount);
+            out.writeInt(INDEX_MAGIC);
+            for (int i = 0; i < mRecordCount; i++) {
+                out.writeInt(mOffsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        mSavedIndexCount = mRecordCount;
+    }
+
+    /**
+     * reads up to maxCount records starting from recordIndex. All records are read with one
+     * positional read, so reading time doesn't depend on position of records in segment.
+     * Null is added for every lost or corrupted record.
+     *
+     * @param expireTime records that are added before this time are returned as {@link RequestJournal#EXPIRED_URL}
+     */
+    synchronized void read(int recordIndex, int maxCount, long expireTime, List<String> out) throws IOException {
+        loadIndex();
+
+        // records that are removed by compaction are sent already
+        for (; recordIndex < mIndexBase && maxCount > 0; recordIndex++, maxCount--) {
+            out.add(null);
+        }
+        recordIndex -= mIndexBase;
+
+        final int end = Math.min(mRecordCount, recordIndex + maxCount);
+        if (recordIndex >= end) {
+            return;
+        }
+
+        // range is read from the first valid record till the next valid record after range
+        int start = mDataEnd;
+        for (int i = recordIndex; i < end; i++) {
+            if (mOffsets[i] != LOST_OFFSET) {
+                start = mOffsets[i];
+                break;
+            }
+        }
+        int endOffset = mDataEnd;
+        for (int i = end; i < mRecordCount; i++) {
+            if (mOffsets[i] != LOST_OFFSET) {
+                endOffset = mOffsets[i];
+                break;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, endOffset - start));
+
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            readFully(in.getChannel(), buffer, start);
+        } finally {
+            in.close();
+        }
+
+        final UrlDictionary dictionary = getDictionary();
+        final byte[] data = buffer.array();
+        final int headerSize = getRecordHeaderSize();
+        for (int i = recordIndex; i < end; i++) {
+            if (mOffsets[i] == LOST_OFFSET) {
+                out.add(null);
+                continue;
+            }
+
+            final int position = mOffsets[i] - start;
+            final int length = getValidRecordLength(data, position, data.length);
+            if (length < 0) {
+                WebtrekkLogging.log("corrupted journal segment record " + i + ": " + mFile.getName());
+                out.add(null);
+            } else if (getRecordTime(data, position) < expireTime
+                    || (hasChecksum() && data[position + 6] == TYPE_EXPIRED)) {
+                // expired record isn't decoded
+                out.add(RequestJournal.EXPIRED_URL);
+            } else if (dictionary == null) {
+                out.add(new String(data, position + headerSize, length, UTF_8));
+            } else {
+                try {
+                    out.add(dictionary.decode(data, position + headerSize, length));
+                } catch (IOException e) {
+                    WebtrekkLogging.log("corrupted journal segment record " + i + ": " + mFile.getName(), e);
+                    out.add(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return dictionary of segment or null if segment has no dictionary
+     */
+    private UrlDictionary getDictionary() throws IOException {
+        if (mDictionary == null && mVersion != VERSION_NO_DICTIONARY) {
+            ByteBuffer buffer = ByteBuffer.allocate(mDataStart - HEADER_SIZE - 4);
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                readFully(in.getChannel(), buffer, HEADER_SIZE + 4);
+            } finally {
+                in.close();
+            }
+            buffer.flip();
+            mDictionary = UrlDictionary.fromBytes(buffer);
+        }
+        return mDictionary;
+    }
+
+    /**
+     * reads request type of one record
+     */
+    synchronized byte readType(int recordIndex) throws IOException {
+        loadIndex();
+        recordIndex -= mIndexBase;
+
+        if (recordIndex < 0 || recordIndex >= mRecordCount) {
+            throw new IndexOutOfBoundsException("no record " + recordIndex + " in segment " + mFile.getName());
+        }
+
+        if (mOffsets[recordIndex] == LOST_OFFSET) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            readFully(in.getChannel(), buffer, mOffsets[recordIndex] + (hasChecksum() ? 6 : 4));
+        } finally {
+            in.close();
+        }
+        return buffer.get(0);
+    }
+
+    /**
+     * appends records to the end of the segment with one write and commits record count in header.
+     * Data that is written after committed count (for example after process kill) is overwritten.
+     *
+     * @return number of records that were appended
+     */
+    synchronized int append(List<String> urls, byte[] types, long[] times, int from, int maxRecords, int maxBytes) throws IOException {
+        if (isSealed()) {
+            throw new IllegalStateException("segment is sealed: " + mFile.getName());
+        }
+        loadIndex();
+
+        if (mLostCount > 0) {
+            // records are appended to new segment
+            seal();
+            return 0;
+        }
+
+        final UrlDictionary dictionary = getDictionary();
+        final List<byte[]> records = new ArrayList<>(urls.size() - from);
+        int count = 0;
+        int size = 0;
+        for (int i = from; i < urls.size(); i++) {
+            final byte[] record = dictionary == null ? urls.get(i).getBytes(UTF_8) : dictionary.encode(urls.get(i));
+            final int recordSize = getRecordHeaderSize() + record.length;
+            // always put at least one record to segment
+            if (mRecordCount + count >= maxRecords
+                    || (mRecordCount + count > 0 && mDataEnd - mDataStart + size + recordSize > maxBytes)) {
+                break;
+            }
+            records.add(record);
+            size += recordSize;
+            count++;
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        ensureOffsetsCapacity(mRecordCount + count);
+        int offset = mDataEnd;
+        for (int i = 0; i < count; i++) {
+            final byte[] record = records.get(i);
+            mOffsets[mRecordCount + i] = offset;
+            if (hasChecksum()) {
+                putRecordHeader(buffer, types[from + i], getTimeDelta(times[from + i]), record, 0, record.length);
+            } else {
+                buffer.putInt(record.length);
+                buffer.put(types[from + i]);
+            }
+            buffer.put(record);
+            offset += getRecordHeaderSize() + record.length;
+        }
+        buffer.flip();
+
+        final FileChannel channel = getWriteChannel();
+        writeFully(channel, buffer, mDataEnd);
+        writeInt(channel, mRecordCount + count, RECORD_COUNT_OFFSET);
+
+        mDataEnd = offset;
+        mRecordCount += count;
+        return count;
+    }
+
+    /**
+     * channel is kept open while records are appended to segment and is closed when segment is sealed
+     */
+    private FileChannel getWriteChannel() throws IOException {
+        if (mWriteFile == null) {
+            mWriteFile = new RandomAccessFile(mFile, "rw");
+        }
+        return mWriteFile.getChannel();
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void writeInt(FileChannel channel, int value, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(value).flip();
+        writeFully(channel, buffer, position);
+    }
+
+    /**
+     * closes channel that is used for appending
+     */
+    synchronized void close() {
+        if (mWriteFile != null) {
+            try {
+                mWriteFile.close();
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't close journal segment: " + mFile.getName(), e);
+            }
+            mWriteFile = null;
+        }
+    }
+
+    private void ensureOffsetsCapacity(int capacity) {
+        if (mOffsets.length < capacity) {
+            mOffsets = Arrays.copyOf(mOffsets, Math.max(capacity, mOffsets.length * 2));
+        }
+    }
+
+    /**
+     * writes records index to the end of segment and marks it as sealed. No appends are possible after that.
+     */
+    synchronized void seal() throws IOException {
+        if (isSealed()) {
+            return;
+        }
+        loadIndex();
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 * mRecordCount + 8);
+        buffer.asIntBuffer().put(mOffsets, 0, mRecordCount).put(mRecordCount).put(INDEX_MAGIC);
+
+        try {
+            final FileChannel channel = getWriteChannel();
+            channel.truncate(mDataEnd);
+            writeFully(channel, buffer, mDataEnd);
+
+            ByteBuffer flags = ByteBuffer.allocate(2);
+            flags.putShort((short) (mFlags | FLAG_SEALED)).flip();
+            writeFully(channel, flags, FLAGS_OFFSET);
+            mFlags |= FLAG_SEALED;
+        } finally {
+            close();
+        }
+        getIndexFile().delete();
+    }
+
+    /**
+     * @return true if record isn't lost and is added before expireTime
+     */
+    private boolean isExpired(FileChannel channel, int recordIndex, long expireTime) throws IOException {
+        if (mOffsets[recordIndex] == LOST_OFFSET) {
+            return false;
+        }
+        if (!hasTime()) {
+            return mCreatedTime < expireTime;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer, mOffsets[recordIndex] + CHECKSUM_RECORD_HEADER_SIZE);
+        return mCreatedTime + 1000L * buffer.getInt(0) < expireTime;
+    }
+
+    /**
+     * Record times can go back if wall clock is set back, so records are checked one by one from the
+     * head and scan stops at the first record that isn't expired. Segment has at most
+     * {@link RequestJournal#MAX_SEGMENT_RECORDS} records.
+     *
+     * @return index of the first not sent record that isn't expired
+     */
+    private int findExpiredEnd(FileChannel channel, long expireTime) throws IOException {
+        if (expireTime <= 0 || !hasChecksum()) {
+            return mHeadIndex;
+        }
+        int end = mHeadIndex;
+        while (end < mRecordCount && isExpired(channel, end, expireTime)) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * removes sent records from the beginning of segment if their size is more than ratio of size
+     * of not sent records. Data of not sent records that are added before expireTime is removed as
+     * well, they are kept without data to keep record indexes. Not sent records are written to
+     * temporary file that replaces segment file with rename, so segment is either old or compacted
+     * one if process is killed.
+     *
+     * @param expireTime records that are added before this time are expired, 0 if records don't expire
+     * @return true if segment is compacted
+     */
+    synchronized boolean compact(float ratio, int minDeadBytes, long expireTime) throws IOException {
+        if (mDeleted || (mHeadIndex == 0 && expireTime <= 0)) {
+            return false;
+        }
+        loadIndex();
+
+        // lost records are at the end and have no data
+        int liveStart = mDataEnd;
+        for (int i = mHeadIndex; i < mRecordCount; i++) {
+            if (mOffsets[i] != LOST_OFFSET) {
+                liveStart = mOffsets[i];
+                break;
+            }
+        }
+
+        final int headerSize = getRecordHeaderSize();
+        final int expiredEnd;
+        // not expired records start after the last expired one
+        int restStart = liveStart;
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            final FileChannel channel = in.getChannel();
+            expiredEnd = findExpiredEnd(channel, expireTime);
+            if (expiredEnd > mHeadIndex) {
+                ByteBuffer buffer = ByteBuffer.allocate(4);
+                readFully(channel, buffer, mOffsets[expiredEnd - 1] + 2);
+                restStart = mOffsets[expiredEnd - 1] + headerSize + buffer.getInt(0);
+            }
+        } finally {
+            in.close();
+        }
+
+        final int expiredCount = expiredEnd - mHeadIndex;
+        final int deadBytes = liveStart - mDataStart + restStart - liveStart - expiredCount * headerSize;
+        final int liveBytes = mDataEnd - restStart;
+        if (deadBytes <= 0 || deadBytes < minDeadBytes || deadBytes < ratio * liveBytes) {
+            return false;
+        }
+
+        final int liveCount = mRecordCount - mHeadIndex;
+        final int[] offsets = new int[Math.max(16, liveCount)];
+        for (int i = 0; i < liveCount; i++) {
+            final int offset = mOffsets[mHeadIndex + i];
+            if (i < expiredCount) {
+                offsets[i] = mDataStart + i * headerSize;
+            } else {
+                offsets[i] = offset == LOST_OFFSET ? LOST_OFFSET : offset - deadBytes;
+            }
+        }
+
+        // header with dictionary and not expired records are copied as is
+        ByteBuffer buffer = ByteBuffer.allocate(mDataStart + expiredCount * headerSize + liveBytes
+                + (isSealed() ? 4 * liveCount + 8 : 0));
+        in = new FileInputStream(mFile);
+        try {
+            final FileChannel channel = in.getChannel();
+            buffer.limit(mDataStart);
+            readFully(channel, buffer, 0);
+            buffer.limit(mDataStart + expiredCount * headerSize);
+            for (int i = 0; i < expiredCount; i++) {
+                putRecordHeader(buffer, TYPE_EXPIRED, 0, buffer.array(), 0, 0);
+            }
+            final int restPosition = buffer.position();
+            buffer.limit(restPosition + liveBytes);
+            // position is relative to data that is already in buffer
+            readFully(channel, buffer, restStart - restPosition);
+        } finally {
+            in.close();
+        }
+        buffer.putInt(RECORD_COUNT_OFFSET, liveCount);
+        buffer.putInt(HEAD_INDEX_OFFSET, 0);
+        if (isSealed()) {
+            buffer.limit(buffer.capacity());
+            for (int i = 0; i < liveCount; i++) {
+                buffer.putInt(offsets[i]);
+            }
+            buffer.putInt(liveCount);
+            buffer.putInt(INDEX_MAGIC);
+        }
+        buffer.flip();
+
+        final File tempFile = new File(mFile.getParentFile(), mFile.getName() + TEMP_FILE_SUFFIX);
+        RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+        try {
+            out.setLength(0);
+            writeFully(out.getChannel(), buffer, 0);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+
+        close();
+        // sidecar offsets are invalid for compacted segment
+        getIndexFile().delete();
+        mSavedIndexCount = 0;
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("can't replace journal segment with compacted one: " + mFile.getName());
+        }
+
+        WebtrekkLogging.log("journal segment " + mFile.getName() + " is compacted, released bytes: " + deadBytes
+                + ", expired records: " + expiredCount);
+        mIndexBase += mHeadIndex;
+        mRecordCount = liveCount;
+        mHeadIndex = 0;
+        mOffsets = offsets;
+        mDataEnd -= deadBytes;
+        return true;
+    }
+
+    synchronized void setHeadIndex(int headIndex) {
+        mHeadIndex = Math.min(headIndex - mIndexBase, mRecordCount);
+    }
+
+    /**
+     * saves head index to header.
+     */
+    synchronized void commitHeadIndex() throws IOException {
+        if (mWriteFile != null) {
+            writeInt(mWriteFile.getChannel(), mHeadIndex, HEAD_INDEX_OFFSET);
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            writeInt(raf.getChannel(), mHeadIndex, HEAD_INDEX_OFFSET);
+        } finally {
+            raf.close();
+        }
+    }
+
+    synchronized boolean delete() {
+        mDeleted = true;
+        close();
+        getIndexFile().delete();
+        return mFile.delete();
+    }
+
+    /**
+     * moves segment file to other directory, for example to pass it to other process. Head index is
+     * saved before, sidecar index is deleted as sealed segment has index in the trailer. Segment
+     * object can't be used after that.
+     *
+     * @return true if segment is moved
+     */
+    synchronized boolean moveTo(File file) throws IOException {
+        commitHeadIndex();
+        mDeleted = true;
+        close();
+        getIndexFile().delete();
+        return mFile.renameTo(file);
+    }
+
+    /**
+     * changes sequence in the header of segment file that isn't opened, so segment of other journal
+     * can be added to this one.
+     */
+    static void writeSequence(File file, long sequence) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(SEQUENCE_OFFSET);
+            raf.writeLong(sequence);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * keeps requests in several lanes, every lane is a separate storage of configured type with its own
+ * journal or database, so lanes survive restart. Order of urls is kept within lane.
+ *
+ * Lanes are dequeued by smooth weighted round robin: if both lanes have urls, priority lane gets
+ * priorityWeight of every priorityWeight + generalWeight sent urls and they are interleaved, so
+ * install, CDB and crash requests don't wait behind thousands of page requests after long offline
+ * period and page requests aren't starved either. Lane without urls doesn't collect credit.
+ *
+ * Batch and window of urls are taken from one lane only. Limit of queue size is applied per lane.
+ */
+public class LaneRequestStorage implements RequestStorage {
+
+    public enum Lane {
+        // install, CDB requests and crash reports
+        PRIORITY,
+        // page, action and other requests
+        GENERAL;
+
+        public static Lane of(TrackingRequest.RequestType type) {
+            switch (type) {
+                case INSTALL:
+                case CDB:
+                case FATAL_EXCEPTION:
+                    return PRIORITY;
+                default:
+                    return GENERAL;
+            }
+        }
+    }
+
+    private static final int NO_PEEKED_LANE = -1;
+
+    final private RequestStorage[] mLanes;
+    final private int[] mWeights;
+    // current weights of smooth weighted round robin
+    final private int[] mCurrentWeights;
+    // lane of url or batch that is returned by latest peek and is being sent now
+    private int mPeekedLane = NO_PEEKED_LANE;
+
+    /**
+     * @param priorityLane storage of {@link Lane#PRIORITY} requests
+     * @param generalLane storage of {@link Lane#GENERAL} requests
+     * @param priorityWeight share of priority lane if both lanes have urls
+     * @param generalWeight share of general lane if both lanes have urls
+     */
+    public LaneRequestStorage(RequestStorage priorityLane, RequestStorage generalLane, int priorityWeight, int generalWeight) {
+        mLanes = new RequestStorage[]{priorityLane, generalLane};
+        mWeights = new int[]{Math.max(1, priorityWeight), Math.max(1, generalWeight)};
+        mCurrentWeights = new int[mLanes.length];
+    }
+
+    /**
+     * @return storage of lane
+     */
+    public RequestStorage getLane(Lane lane) {
+        return mLanes[lane.ordinal()];
+    }
+
+    @Override
+    public void addURL(String requestUrl) {
+        addURL(requestUrl, TrackingRequest.RequestType.GENERAL);
+    }
+
+    @Override
+    public void addURL(String requestUrl, TrackingRequest.RequestType type) {
+        mLanes[Lane.of(type).ordinal()].addURL(requestUrl, type);
+    }
+
+    @Override
+    public synchronized String peek() {
+        mPeekedLane = NO_PEEKED_LANE;
+        final int next = nextLane();
+        for (int i = 0; i < mLanes.length; i++) {
+            // other lane is tried if next one has only expired or lost urls
+            final int lane = (next + i) % mLanes.length;
+            final String url = mLanes[lane].peek();
+            if (url != null) {
+                mPeekedLane = lane;
+                return url;
+            }
+        }
+        if (mLanes[next].size() > 0) {
+            // head of lane can't be read, following removeLastURL() drops it like single storage does
+            mPeekedLane = next;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void removeLastURL() {
+        if (mPeekedLane == NO_PEEKED_LANE) {
+            return;
+        }
+        mLanes[mPeekedLane].removeLastURL();
+        onSent(mPeekedLane, 1);
+        mPeekedLane = NO_PEEKED_LANE;
+    }
+
+    @Override
+    public synchronized List<String> peek(int maxCount) {
+        mPeekedLane = NO_PEEKED_LANE;
+        final int next = nextLane();
+        for (int i = 0; i < mLanes.length; i++) {
+            final int lane = (next + i) % mLanes.length;
+            final List<String> urls = mLanes[lane].peek(maxCount);
+            if (!urls.isEmpty()) {
+                mPeekedLane = lane;
+                return urls;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized void removeLastURLs(int count) {
+        if (mPeekedLane == NO_PEEKED_LANE) {
+            return;
+        }
+        mLanes[mPeekedLane].removeLastURLs(count);
+        onSent(mPeekedLane, count);
+        mPeekedLane = NO_PEEKED_LANE;
+    }
+
+    @Override
+    public synchronized void removeLastURLs(boolean[] sent) {
+        if (mPeekedLane == NO_PEEKED_LANE) {
+            return;
+        }
+        mLanes[mPeekedLane].removeLastURLs(sent);
+        int count = 0;
+        for (boolean isSent : sent) {
+            if (isSent) {
+                count++;
+            }
+        }
+        onSent(mPeekedLane, count);
+        mPeekedLane = NO_PEEKED_LANE;
+    }
+
+    /**
+     * @return lane with the highest current weight among lanes with urls
+     */
+    private int nextLane() {
+        int next = 0;
+        int nextWeight = Integer.MIN_VALUE;
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            if (mLanes[lane].size() > 0 && mCurrentWeights[lane] + mWeights[lane] > nextWeight) {
+                next = lane;
+                nextWeight = mCurrentWeights[lane] + mWeights[lane];
+            }
+        }
+        return next;
+    }
+
+    /**
+     * moves round robin by sent urls, every url is one turn
+     */
+    private void onSent(int sentLane, int count) {
+        int totalWeight = 0;
+        int activeLanes = 0;
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            if (lane == sentLane || mLanes[lane].size() > 0) {
+                totalWeight += mWeights[lane];
+                activeLanes++;
+            }
+        }
+
+        if (activeLanes < 2) {
+            // there is nothing to share, lanes start equally when other lane gets urls
+            for (int lane = 0; lane < mLanes.length; lane++) {
+                mCurrentWeights[lane] = 0;
+            }
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            for (int lane = 0; lane < mLanes.length; lane++) {
+                if (lane == sentLane || mLanes[lane].size() > 0) {
+                    mCurrentWeights[lane] += mWeights[lane];
+                }
+            }
+            mCurrentWeights[sentLane] -= totalWeight;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (RequestStorage lane : mLanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isReady() {
+        for (RequestStorage lane : mLanes) {
+            if (!lane.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        for (RequestStorage lane : mLanes) {
+            lane.flush();
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (RequestStorage lane : mLanes) {
+            lane.reset();
+        }
+    }
+
+    @Override
+    public synchronized void clearAllTrackingData() {
+        for (RequestStorage lane : mLanes) {
+            lane.clearAllTrackingData();
+        }
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            mCurrentWeights[lane] = 0;
+        }
+        mPeekedLane = NO_PEEKED_LANE;
+    }
+
+    @Override
+    public void deleteRequestsFile() {
+        for (RequestStorage lane : mLanes) {
+            lane.deleteRequestsFile();
+        }
+    }
+
+    /**
+     * @return counters of all lanes at the time of call
+     */
+    @Override
+    public RequestQueueMetrics getMetrics() {
+        final RequestQueueMetrics[] metrics = new RequestQueueMetrics[mLanes.length];
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            metrics[lane] = mLanes[lane].getMetrics();
+        }
+        return RequestQueueMetrics.sum(metrics);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * keeps request urls in memory only. Not sent urls are lost if process is killed, so it is suitable
+ * for tests and applications that don't need to keep requests between starts.
+ */
+public class MemoryRequestStorage implements RequestStorage {
+
+    final private ArrayDeque<String> mURLs = new ArrayDeque<>();
+    final private ArrayDeque<TrackingRequest.RequestType> mTypes = new ArrayDeque<>();
+    final private int mMaxRequests;
+    final private RequestUrlStore.OverflowPolicy mOverflowPolicy;
+    final private RequestQueueMetrics mMetrics = new RequestQueueMetrics();
+    // true if url that is returned by latest peek is being sent now
+    private boolean mPeeked;
+    // true if url that is being sent is already dropped by overflow policy
+    private boolean mPeekedDropped;
+    // number of urls of batch that is returned by latest peek(int) and is being sent now
+    private int mPeekedCount;
+    // number of urls of batch that are already dropped by overflow policy
+    private int mPeekedDroppedCount;
+
+    /**
+     * constructs storage without limit of queue size
+     */
+    public MemoryRequestStorage() {
+        this(Integer.MAX_VALUE, RequestUrlStore.OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param maxRequests maximum number of requests in queue
+     * @param overflowPolicy defines which request is dropped if queue is full
+     */
+    public MemoryRequestStorage(int maxRequests, RequestUrlStore.OverflowPolicy overflowPolicy) {
+        mMaxRequests = maxRequests;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    @Override
+    public void addURL(String requestUrl) {
+        addURL(requestUrl, TrackingRequest.RequestType.GENERAL);
+    }
+
+    @Override
+    public synchronized void addURL(String requestUrl, TrackingRequest.RequestType type) {
+        while (mURLs.size() >= mMaxRequests) {
+            final TrackingRequest.RequestType headType = mTypes.peekFirst();
+            if (mOverflowPolicy == RequestUrlStore.OverflowPolicy.DROP_NEWEST
+                    || (mOverflowPolicy == RequestUrlStore.OverflowPolicy.DROP_LOWEST_PRIORITY && headType.getPriority() > type.getPriority())) {
+                WebtrekkLogging.log("request queue is full, new request is dropped. Max requests: " + mMaxRequests);
+                mMetrics.onDropped(type);
+                return;
+            }
+
+            if (mPeeked) {
+                // request is being sent now, so sender shouldn't remove next one after it is done
+                mPeekedDropped = true;
+                mPeeked = false;
+            }
+            if (mPeekedCount > 0) {
+                mPeekedCount--;
+                mPeekedDroppedCount++;
+            }
+            mURLs.pollFirst();
+            mTypes.pollFirst();
+            mMetrics.onDropped(headType);
+        }
+
+        mURLs.addLast(requestUrl);
+        mTypes.addLast(type);
+    }
+
+    @Override
+    public synchronized String peek() {
+        final String url = mURLs.peekFirst();
+        if (url != null) {
+            mPeeked = true;
+            mPeekedDropped = false;
+        }
+        return url;
+    }
+
+    @Override
+    public synchronized void removeLastURL() {
+        if (mPeekedDropped) {
+            // peeked url is already dropped by overflow policy
+            mPeekedDropped = false;
+            return;
+        }
+
+        mPeeked = false;
+        mURLs.pollFirst();
+        mTypes.pollFirst();
+    }
+
+    @Override
+    public synchronized List<String> peek(int maxCount) {
+        final List<String> urls = new ArrayList<>(Math.min(maxCount, mURLs.size()));
+        for (String url : mURLs) {
+            if (urls.size() >= maxCount) {
+                break;
+            }
+            urls.add(url);
+        }
+        mPeekedCount = urls.size();
+        mPeekedDroppedCount = 0;
+        return urls;
+    }
+
+    @Override
+    public synchronized void removeLastURLs(int count) {
+        // dropped urls are always at the beginning of batch
+        for (int i = Math.min(count - mPeekedDroppedCount, mPeekedCount); i > 0; i--) {
+            mURLs.pollFirst();
+            mTypes.pollFirst();
+        }
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+    }
+
+    @Override
+    public synchronized void removeLastURLs(boolean[] sent) {
+        final Iterator<String> urls = mURLs.iterator();
+        final Iterator<TrackingRequest.RequestType> types = mTypes.iterator();
+        // dropped urls are always at the beginning of batch
+        for (int i = mPeekedDroppedCount; i < sent.length && i < mPeekedDroppedCount + mPeekedCount; i++) {
+            urls.next();
+            types.next();
+            if (sent[i]) {
+                urls.remove();
+                types.remove();
+            }
+        }
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mURLs.size();
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        // nothing to save
+    }
+
+    @Override
+    public void reset() {
+        // nothing to reset
+    }
+
+    @Override
+    public synchronized void clearAllTrackingData() {
+        mURLs.clear();
+        mTypes.clear();
+        mPeeked = false;
+        mPeekedDropped = false;
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+    }
+
+    @Override
+    public void deleteRequestsFile() {
+        // no files are used
+    }
+
+    @Override
+    public RequestQueueMetrics getMetrics() {
+        return mMetrics;
+    }
+}
@@ -33,12 +33,12 @@ import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
@@ -92,7 +92,11 @@ public class RequestFactory {
     // same as the globalTrackingParameter but will not be replaced, fixed values can be added from code or xml
     private TrackingParameter mConstGlobalTrackingParameter;
 
-    private RequestUrlStore mRequestUrlStore;
+    private RequestStorage mRequestUrlStore;
+    final private RequestTransferMetrics mTransferMetrics = new RequestTransferMetrics();
+    private RetryScheduler mRetryScheduler = new RetryScheduler();
+    final private RoundTripEstimator mRoundTripEstimator = new RoundTripEstimator();
+    private ConnectivityGate mConnectivityGate;
     private String mCustomPageName;
 
     private ScheduledExecutorService mURLSendTimerService;
@@ -129,11 +133,12 @@ public class RequestFactory {
         initURLSendTimerService();
         initFlashTimerService();
 
-        mRequestUrlStore = new RequestUrlStore(mContext);
+        mRequestUrlStore = createRequestStorage();
         mConstGlobalTrackingParameter = new TrackingParameter();
         mGlobalTrackingParameter = new TrackingParameter();
         mPendingRequestStore = new TrackingRequestTemporaryStore(mContext, mTrackingConfiguration);
         mValidator = new PinConnectionValidator(validPins);
+        initConnectivityGate();
     }
 
     public boolean isOptout() {
@@ -191,11 +196,71 @@ public class RequestFactory {
         mCustomPageName = customPageName;
     }
 
-    public RequestUrlStore getRequestUrlStore() {
+    /**
+     * creates storage of request urls according to configuration. If priority weight is set,
+     * install, CDB and crash requests are kept in separate lane, see {@link LaneRequestStorage}.
+     */
+    private RequestStorage createRequestStorage() {
+        if (mTrackingConfiguration.getRequestPriorityWeight() <= 0) {
+            return createRequestStorage(null);
+        }
+
+        return new LaneRequestStorage(createRequestStorage("priority"), createRequestStorage(null),
+                mTrackingConfiguration.getRequestPriorityWeight(), mTrackingConfiguration.getRequestGeneralWeight());
+    }
+
+    /**
+     * @param laneName name of lane that has own files, null for main storage
+     */
+    private RequestStorage createRequestStorage(String laneName) {
+        final int maxRequests = mTrackingConfiguration.getMaxRequests();
+        final RequestUrlStore.OverflowPolicy overflowPolicy = mTrackingConfiguration.getRequestOverflowPolicy();
+
+        switch (mTrackingConfiguration.getRequestStorage()) {
+            case SQLITE:
+                return new SQLiteRequestStorage(mContext, maxRequests, overflowPolicy, laneName);
+            case MEMORY:
+                return new MemoryRequestStorage(maxRequests, overflowPolicy);
+            default:
+                RequestUrlStore store = new RequestUrlStore(mContext, maxRequests, overflowPolicy,
+                        mTrackingConfiguration.getRequestCacheSize() * 1024, null, laneName);
+                store.setCompactionRatio(mTrackingConfiguration.getRequestCompactionRatio() / 100f);
+                store.setMaxRequestAge(mTrackingConfiguration.getRequestMaxAge() * 1000L);
+                return store;
+        }
+    }
+
+
+    public RequestStorage getRequestUrlStore() {
         return mRequestUrlStore;
     }
 
-    public void setRequestUrlStore(RequestUrlStore requestUrlStore) {
+    public RetryScheduler getRetryScheduler() {
+        return mRetryScheduler;
+    }
+
+    /**
+     * for unit testing only
+     */
+    void setRetryScheduler(RetryScheduler retryScheduler) {
+        mRetryScheduler = retryScheduler;
+    }
+
+    /**
+     * @return counters of batch request bodies per connection type
+     */
+    public RequestTransferMetrics getTransferMetrics() {
+        return mTransferMetrics;
+    }
+
+    /**
+     * @return round trip times and request timeouts per connection type
+     */
+    public RoundTripEstimator getRoundTripEstimator() {
+        return mRoundTripEstimator;
+    }
+
+    public void setRequestUrlStore(RequestStorage requestUrlStore) {
         mRequestUrlStore = requestUrlStore;
     }
 
@@ -396,7 +461,8 @@ public class RequestFactory {
             }
 
 
-            if(mRequestUrlStore != null && mTrackingConfiguration.isAutoTrackRequestUrlStoreSize()) {
+            // size isn't known till storage is opened, tracking doesn't wait for it
+            if(mRequestUrlStore != null && mRequestUrlStore.isReady() && mTrackingConfiguration.isAutoTrackRequestUrlStoreSize()) {
                 mAutoCustomParameter.put("requestUrlStoreSize", String.valueOf(mRequestUrlStore.size()));
             }
         }
@@ -408,14 +474,17 @@ public class RequestFactory {
     }
 
     /*
-    Process campaignData
+    Process campaignData, returns type request is queued with. Request with install goal goes
+    with install requests, so it isn't sent after general backlog.
      */
-    private void processInstallGoals(TrackingRequest request)
+    private TrackingRequest.RequestType processInstallGoals(TrackingRequest request)
     {
+        TrackingRequest.RequestType type = request.getRequestType();
 
         if (mAppinstallGoal.isAppinstallGoal(mContext)){
             request.mTrackingParameter.add(Parameter.ECOM, "900", "1");
             mAppinstallGoal.finishAppinstallGoal(mContext);
+            type = TrackingRequest.RequestType.INSTALL;
         }
 
         final String mediaCode = Campaign.getMediaCode(mContext);
@@ -429,6 +498,8 @@ public class RequestFactory {
                 request.mTrackingParameter.add(Parameter.ADVERTISEMENT, deepLinkMediaCode);
             }
         }
+
+        return type;
     }
 
     public void onFirstStart()
@@ -438,11 +509,16 @@ public class RequestFactory {
         if (Campaign.getFirstStartInitiated(mContext, false) && (mCampaign == null || (mCampaign != null && !mCampaign.isAlive()))) {
             startAdvertizingThread(true);
         }
+        // connectivity callback is unregistered on stop
+        if (mConnectivityGate == null) {
+            initConnectivityGate();
+        }
     }
 
     public void stop()
     {
         flush();
+        stopConnectivityGate();
         if (mCampaign != null && mCampaign.isAlive() && !mCampaign.isInterrupted()) {
             mCampaign.interrupt();
         }
@@ -457,7 +533,7 @@ public class RequestFactory {
 
     public void flush()
     {
-        stopSendURLProcess();
+        cancelSendURLProcess();
         mRequestUrlStore.flush();
     }
 
@@ -590,10 +666,11 @@ public class RequestFactory {
         if (!isCampaignFinished()){
             mPendingRequestStore.saveTrackingRequest(request);
         } else {
+            TrackingRequest.RequestType type = request.getRequestType();
             if (!sendPendingRequests()){
-                processInstallGoals(request);
+                type = processInstallGoals(request);
             }
-            addURL(request.getUrlString());
+            addURL(request.getUrlString(), type);
         }
 
         // after the url is created reset the internal parameters to zero
@@ -603,11 +680,11 @@ public class RequestFactory {
         mAutoCustomParameter.put("appUpdated", "0");
     }
 
-    void addURL(String url){
+    void addURL(String url, TrackingRequest.RequestType type){
         // only track if not opted out
         if(!mIsOptout && !mIsSampling) {
             WebtrekkLogging.log("adding url: " + url);
-            mRequestUrlStore.addURL(url);
+            mRequestUrlStore.addURL(url, type);
         }
     }
 
@@ -616,17 +693,21 @@ public class RequestFactory {
         boolean result = false;
         if (isCampaignFinished() && !mPendingRequestStore.queueIsEmpty()){
             WebtrekkLogging.log("sending pending requests");
-            List<TrackingRequest> requests = mPendingRequestStore.getAllSavedRequests();
-
-            if (!requests.isEmpty()){
-                processInstallGoals(requests.get(0));
-                result = true;
-            }
-
-            for (TrackingRequest request:requests){
-                addURL(request.getUrlString());
+            // requests are converted to urls one by one, so they aren't all in memory
+            TrackingRequestTemporaryStore.Reader reader = mPendingRequestStore.openReader();
+            try {
+                TrackingRequest request;
+                while ((request = reader.next()) != null){
+                    TrackingRequest.RequestType type = request.getRequestType();
+                    if (!result){
+                        type = processInstallGoals(request);
+                        result = true;
+                    }
+                    addURL(request.getUrlString(), type);
+                }
+            } finally {
+                reader.close();
             }
-            mPendingRequestStore.deleteQueue();
         }
         return result;
     }
@@ -682,15 +763,77 @@ public class RequestFactory {
         }, 30, 30, TimeUnit.SECONDS);
     }
 
+    /**
+     * starts listening to connectivity, requests are sent at once when device is connected again
+     */
+    private void initConnectivityGate() {
+        if (mConnectivityGate != null) {
+            mConnectivityGate.stop();
+        }
+        mConnectivityGate = new ConnectivityGate(mContext, mTrackingConfiguration.isDeferRequestsWhileRoaming(), new Runnable() {
+            @Override
+            public void run() {
+                onConnected();
+            }
+        });
+        mConnectivityGate.start();
+    }
+
+    /**
+     * unregisters connectivity callback, gate is created again on next first start
+     */
+    private void stopConnectivityGate() {
+        if (mConnectivityGate != null) {
+            mConnectivityGate.stop();
+            mConnectivityGate = null;
+        }
+    }
+
+    /**
+     * is called by connectivity callback, sending is done by timer thread. Nothing is sent in manual send mode.
+     */
+    private void onConnected() {
+        if (mTrackingConfiguration.getSendDelay() == 0 || mURLSendTimerService == null) {
+            return;
+        }
+
+        try {
+            mURLSendTimerService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onSendIntervalOver();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            WebtrekkLogging.log("can't start sending, timer is stopped");
+        }
+    }
+
     /**
      * this method gets called whenever the send delay is over, it executes the requesthandler in a
      * new thread
-     * @return true if send is done and false if previous send is still in progress or there is no message to send
+     * @return true if send is done and false if previous send is still in progress, there is no message to send
+     * or sending is delayed after failure or while device is offline, see {@link RetryScheduler} and {@link ConnectivityGate}.
+     * Send is started if storage is still opened, so caller isn't blocked.
      */
     public boolean onSendIntervalOver() {
+        return onSendIntervalOver(false);
+    }
+
+    /**
+     * @param explicit true if application calls send in manual send mode. It isn't delayed by
+     *                 {@link RetryScheduler}, but is half open attempt if circuit is open.
+     * @return true if send is done, see {@link #onSendIntervalOver()}
+     */
+    public boolean onSendIntervalOver(boolean explicit) {
         //WebtrekkLogging.log("onSendIntervalOver: request urls: " + mRequestUrlStore.size()
         //+ " thread done:"+(mRequestProcessorFuture == null ? "null": mRequestProcessorFuture.isDone()));
-        if(mRequestUrlStore.size() > 0  && (mRequestProcessorFuture == null || mRequestProcessorFuture.isDone())) {
+        // gate is set to null on stop from other thread
+        final ConnectivityGate connectivityGate = mConnectivityGate;
+        // size waits till storage is opened, at cold start sending thread waits for it instead of caller
+        final boolean hasRequests = !mRequestUrlStore.isReady() || mRequestUrlStore.size() > 0;
+        if(hasRequests && (mRequestProcessorFuture == null || mRequestProcessorFuture.isDone())
+                && (connectivityGate == null || connectivityGate.canSend()) && mRetryScheduler.canSend(explicit)) {
             if (mExecutorService == null) {
                 // use daemon thread.
                 mExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
@@ -703,12 +846,47 @@ public class RequestFactory {
                     }
                 });
             }
-            mRequestProcessorFuture = mExecutorService.submit(new RequestProcessor(mRequestUrlStore, mValidator));
+            final RequestProcessor processor = new RequestProcessor(mRequestUrlStore, mValidator,
+                    mTrackingConfiguration.getRequestBatchSize(), mTrackingConfiguration.getRequestConcurrency());
+            processor.setCompressionLevel(mTrackingConfiguration.getRequestCompressionLevel());
+            final String connectionType = connectivityGate == null ? "unknown" : connectivityGate.getConnectionType();
+            processor.setTransferMetrics(mTransferMetrics, connectionType);
+            processor.setRoundTripEstimator(mRoundTripEstimator, connectionType);
+            processor.setRetryScheduler(mRetryScheduler);
+            mRequestProcessorFuture = mExecutorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    processor.run();
+                    scheduleRetry();
+                }
+            });
             return true;
         }else
             return false;
     }
 
+    /**
+     * schedules next attempt after failure, so it doesn't wait for send interval and isn't done at
+     * the same time on all devices. Nothing is scheduled in manual send mode.
+     */
+    private void scheduleRetry() {
+        final long delay = mRetryScheduler.getDelay();
+        if (delay <= 0 || mTrackingConfiguration.getSendDelay() == 0 || mURLSendTimerService == null) {
+            return;
+        }
+
+        try {
+            mURLSendTimerService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onSendIntervalOver();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            WebtrekkLogging.log("can't schedule retry, timer is stopped");
+        }
+    }
+
     private void flashByTimeout()
     {
         if (mFlashTimerFuture == null)
@@ -717,7 +895,16 @@ public class RequestFactory {
             flush();
     }
 
+    /**
+     * stops sending and listening to connectivity
+     */
     public void stopSendURLProcess()
+    {
+        cancelSendURLProcess();
+        stopConnectivityGate();
+    }
+
+    private void cancelSendURLProcess()
     {
         if (mRequestProcessorFuture != null && !mRequestProcessorFuture.isDone()) {
             mRequestProcessorFuture.cancel(true);
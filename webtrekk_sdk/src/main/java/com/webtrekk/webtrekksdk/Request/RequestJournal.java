@@ -0,0 +1,657 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append only queue of request urls that is stored as a list of segment files in one directory.
+ * New urls are appended to the last segment, urls are read and removed from the first one.
+ * Segment that is completely sent is deleted at once, so file space is released without waiting
+ * for the whole queue to be sent.
+ *
+ * Record position is segment sequence in high 32 bits and record index in segment in low 32 bits.
+ *
+ * Appended records are written with group commit: they are collected in memory and written with
+ * one write when commit interval is over or batch reaches byte watermark. {@link #commit()} writes
+ * batch at once. Records in batch are already part of journal for all other methods.
+ *
+ * Segments can be passed to journal of other process: {@link #handOff} moves all segments to inbox
+ * directory and {@link #adopt} adds segments from inbox to the end of journal. Segment files are
+ * moved with rename, records aren't read or written again.
+ *
+ * Every record has time when it is appended. Records that are older than max age are read as
+ * {@link #EXPIRED_URL} without decoding and their data is removed by compaction.
+ */
+class RequestJournal {
+
+    static final int MAX_SEGMENT_RECORDS = 1000;
+    static final int MAX_SEGMENT_BYTES = 1024 * 1024;
+    static final long COMMIT_INTERVAL_MS = 1000;
+    static final int COMMIT_WATERMARK_BYTES = 64 * 1024;
+    // head segment is compacted only if it releases at least this size
+    static final int MIN_COMPACTION_BYTES = 64 * 1024;
+    static final float DEFAULT_COMPACTION_RATIO = 1;
+    // returned instead of url that is older than max age, compared by reference
+    static final String EXPIRED_URL = new String("expired");
+
+    final private File mDirectory;
+    final private ArrayDeque<JournalSegment> mSegments = new ArrayDeque<>();
+    // number of not sent records in all segments
+    private int mSize;
+    private long mNextSequence;
+
+    // records that are appended, but aren't written yet
+    final private List<String> mPendingRecords = new ArrayList<>();
+    private byte[] mPendingTypes = new byte[64];
+    private long[] mPendingTimes = new long[64];
+    private int mPendingBytes;
+    private ScheduledExecutorService mCommitExecutor;
+    private ScheduledFuture<?> mCommitFuture;
+    // head segment is compacted if size of sent records is more than this ratio of not sent records size
+    private volatile float mCompactionRatio = DEFAULT_COMPACTION_RATIO;
+    private boolean mCompactionScheduled;
+    // records that are older than this age in milliseconds are expired, 0 if records don't expire
+    private volatile long mMaxAge;
+
+    /**
+     * creates journal object, files are read by {@link #open()}
+     */
+    RequestJournal(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    static long position(long sequence, int recordIndex) {
+        return (sequence << 32) | (recordIndex & 0xFFFFFFFFL);
+    }
+
+    static long sequenceOf(long position) {
+        return position >>> 32;
+    }
+
+    static int recordIndexOf(long position) {
+        return (int) position;
+    }
+
+    /**
+     * reads only segments headers, records aren't touched.
+     */
+    synchronized void open() {
+        mSegments.clear();
+        mSize = 0;
+        mNextSequence = 1;
+
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JournalSegment.FILE_SUFFIX);
+            }
+        });
+
+        // compaction was interrupted, segment file isn't changed
+        File[] tempFiles = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JournalSegment.FILE_SUFFIX + JournalSegment.TEMP_FILE_SUFFIX);
+            }
+        });
+        if (tempFiles != null) {
+            for (File file : tempFiles) {
+                file.delete();
+            }
+        }
+
+        if (files == null) {
+            return;
+        }
+
+        // file names are zero padded sequences
+        Arrays.sort(files);
+
+        for (File file : files) {
+            try {
+                JournalSegment segment = JournalSegment.open(file);
+                mNextSequence = Math.max(mNextSequence, segment.getSequence() + 1);
+                mSegments.addLast(segment);
+                mSize += segment.available();
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't open journal segment, delete it: " + file.getName(), e);
+                file.delete();
+            }
+        }
+
+        // remove sent segments, only the last one is kept as new records can be appended to it
+        while (mSegments.size() > 0 && mSegments.peekFirst().isConsumed()
+                && (mSegments.peekFirst().isSealed() || mSegments.size() > 1)) {
+            mSegments.pollFirst().delete();
+        }
+
+        WebtrekkLogging.log("journal opened. Segments: " + mSegments.size() + " size: " + mSize);
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return position of first not sent record or -1 if journal is empty
+     */
+    synchronized long getHeadPosition() {
+        JournalSegment head = getHeadSegment();
+        return head == null ? -1 : position(head.getSequence(), head.getHeadIndex());
+    }
+
+    private JournalSegment getHeadSegment() {
+        for (int i = 0; i < 2; i++) {
+            for (JournalSegment segment : mSegments) {
+                if (!segment.isConsumed()) {
+                    return segment;
+                }
+            }
+
+            // head record is still pending
+            if (!writePendingSafe()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there were pending records and they are written
+     */
+    private boolean writePendingSafe() {
+        if (mPendingRecords.isEmpty()) {
+            return false;
+        }
+
+        try {
+            writePending();
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't write urls to journal", e);
+        }
+        return true;
+    }
+
+    /**
+     * appends urls to the end of journal. Urls are written in background with other urls appended
+     * during commit interval, or at once if batch is big enough.
+     *
+     * @param times time in milliseconds when each url is added
+     */
+    synchronized void append(@NonNull List<String> urls, @NonNull List<TrackingRequest.RequestType> types,
+                             @NonNull List<Long> times) throws IOException {
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < urls.size(); i++) {
+            final String url = urls.get(i);
+            if (mPendingRecords.size() == mPendingTypes.length) {
+                mPendingTypes = Arrays.copyOf(mPendingTypes, mPendingTypes.length * 2);
+                mPendingTimes = Arrays.copyOf(mPendingTimes, mPendingTimes.length * 2);
+            }
+            mPendingTypes[mPendingRecords.size()] = (byte) types.get(i).ordinal();
+            mPendingTimes[mPendingRecords.size()] = times.get(i);
+            mPendingRecords.add(url);
+            // size before encoding, it is enough to decide when to write
+            mPendingBytes += JournalSegment.RECORD_HEADER_SIZE + url.length();
+        }
+        mSize += urls.size();
+
+        if (mPendingBytes >= COMMIT_WATERMARK_BYTES) {
+            writePending();
+        } else if (mCommitFuture == null) {
+            mCommitFuture = getCommitExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RequestJournal.this) {
+                        mCommitFuture = null;
+                        try {
+                            writePending();
+                        } catch (IOException e) {
+                            WebtrekkLogging.log("can't write urls to journal", e);
+                        }
+                    }
+                }
+            }, COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ScheduledExecutorService getCommitExecutor() {
+        if (mCommitExecutor == null) {
+            mCommitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mCommitExecutor;
+    }
+
+    /**
+     * writes pending records to the end of journal. New segment is started if current one is full.
+     * Records that can't be written are lost.
+     */
+    private void writePending() throws IOException {
+        if (mCommitFuture != null) {
+            mCommitFuture.cancel(false);
+            mCommitFuture = null;
+        }
+
+        if (mPendingRecords.isEmpty()) {
+            return;
+        }
+
+        final List<String> records = new ArrayList<>(mPendingRecords);
+        final byte[] types = mPendingTypes;
+        final long[] times = mPendingTimes;
+        mPendingRecords.clear();
+        mPendingTypes = new byte[64];
+        mPendingTimes = new long[64];
+        mPendingBytes = 0;
+
+        int written = 0;
+        try {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                throw new IOException("can't create journal directory " + mDirectory.getAbsolutePath());
+            }
+
+            while (written < records.size()) {
+                JournalSegment tail = mSegments.peekLast();
+                if (tail == null || tail.isSealed()) {
+                    // dictionary of new segment is built from its first url
+                    tail = JournalSegment.create(mDirectory, mNextSequence++, UrlDictionary.fromUrl(records.get(written)));
+                    mSegments.addLast(tail);
+                }
+
+                written += tail.append(records, types, times, written, MAX_SEGMENT_RECORDS, MAX_SEGMENT_BYTES);
+
+                if (written < records.size() || tail.getRecordCount() >= MAX_SEGMENT_RECORDS) {
+                    tail.seal();
+                }
+            }
+        } finally {
+            // not written records are lost
+            mSize -= records.size() - written;
+        }
+    }
+
+    /**
+     * @return request type of first not sent record or null if journal is empty
+     */
+    synchronized TrackingRequest.RequestType getHeadType() throws IOException {
+        JournalSegment head = getHeadSegment();
+        if (head == null) {
+            return null;
+        }
+
+        final int type = head.readType(head.getHeadIndex());
+        TrackingRequest.RequestType[] types = TrackingRequest.RequestType.values();
+        return type >= 0 && type < types.length ? types[type] : TrackingRequest.RequestType.GENERAL;
+    }
+
+    /**
+     * reads up to maxCount urls starting from position. Reading can go through several segments.
+     * Null is added for every url that is lost because of corruption and {@link #EXPIRED_URL} for
+     * every url that is older than max age.
+     *
+     * @param positions receives position of each read url
+     * @return position after the last read url or -1 if there is nothing more to read
+     */
+    long read(long startPosition, int maxCount, @NonNull List<String> out, @NonNull List<Long> positions) throws IOException {
+        final List<JournalSegment> segments = new ArrayList<>();
+        final List<Integer> recordIndexes = new ArrayList<>();
+        final long nextPosition;
+        final long expireTime = getExpireTime();
+
+        synchronized (this) {
+            writePending();
+            nextPosition = planRead(startPosition, maxCount, segments, recordIndexes);
+        }
+
+        // segments are read without journal lock, so urls can be added and removed during reading
+        int remaining = maxCount;
+        for (int i = 0; i < segments.size(); i++) {
+            final JournalSegment segment = segments.get(i);
+            final int recordIndex = recordIndexes.get(i);
+            final int before = out.size();
+            try {
+                segment.read(recordIndex, remaining, expireTime, out);
+            } catch (IOException e) {
+                // records of unreadable segment are lost, other segments are still read
+                WebtrekkLogging.log("can't read journal segment: " + segment.getFile().getName(), e);
+                final int count = Math.min(segment.getRecordCount() - recordIndex, remaining);
+                for (int j = 0; j < count; j++) {
+                    out.add(null);
+                }
+            }
+
+            for (int j = before; j < out.size(); j++) {
+                positions.add(position(segment.getSequence(), recordIndex + j - before));
+            }
+            remaining -= out.size() - before;
+        }
+
+        return nextPosition;
+    }
+
+    /**
+     * finds segments and record indexes to read maxCount records from start position
+     *
+     * @return position after the last record to read or -1 if there is nothing more to read
+     */
+    private long planRead(long startPosition, int maxCount, List<JournalSegment> segments, List<Integer> recordIndexes) {
+        long sequence = sequenceOf(startPosition);
+        int recordIndex = recordIndexOf(startPosition);
+        int remaining = maxCount;
+
+        Iterator<JournalSegment> iterator = mSegments.iterator();
+        while (iterator.hasNext() && remaining > 0) {
+            JournalSegment segment = iterator.next();
+            if (segment.getSequence() < sequence) {
+                continue;
+            }
+            if (segment.getSequence() > sequence) {
+                recordIndex = segment.getHeadIndex();
+            }
+
+            final int count = Math.max(0, Math.min(segment.getRecordCount() - recordIndex, remaining));
+            if (count > 0) {
+                segments.add(segment);
+                recordIndexes.add(recordIndex);
+            }
+
+            sequence = segment.getSequence();
+            recordIndex += count;
+            remaining -= count;
+
+            if (recordIndex < segment.getRecordCount()) {
+                return position(sequence, recordIndex);
+            }
+        }
+
+        JournalSegment next = null;
+        for (JournalSegment segment : mSegments) {
+            if (segment.getSequence() > sequence) {
+                next = segment;
+                break;
+            }
+        }
+
+        return next == null ? -1 : position(next.getSequence(), next.getHeadIndex());
+    }
+
+    /**
+     * marks first not sent record as sent. Segment is deleted if all records are sent and no new
+     * records can be added to it.
+     */
+    synchronized void removeHead() {
+        JournalSegment head = getHeadSegment();
+        if (head == null) {
+            return;
+        }
+
+        head.setHeadIndex(head.getHeadIndex() + 1);
+        mSize--;
+
+        // last not sealed segment is kept to append new records to it
+        if (head.isConsumed() && (head.isSealed() || head != mSegments.peekLast())) {
+            removeSegment(head);
+        }
+    }
+
+    private void removeSegment(JournalSegment segment) {
+        mSegments.remove(segment);
+        if (segment.delete()) {
+            WebtrekkLogging.log("journal segment is sent and deleted: " + segment.getFile().getName());
+        } else {
+            WebtrekkLogging.log("can't delete sent journal segment: " + segment.getFile().getName());
+        }
+    }
+
+    /**
+     * saves head index of the first segment and record index of the last one. Is called with the
+     * same frequency as url flush to file.
+     */
+    synchronized void commit() {
+        writePendingSafe();
+
+        JournalSegment head = mSegments.peekFirst();
+        if (head == null) {
+            return;
+        }
+
+        try {
+            head.commitHeadIndex();
+            mSegments.peekLast().saveIndex();
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't save journal head", e);
+        }
+
+        scheduleCompaction(head);
+    }
+
+    void setCompactionRatio(float ratio) {
+        mCompactionRatio = ratio;
+    }
+
+    /**
+     * @param maxAge age in milliseconds after which records expire, 0 if records don't expire
+     */
+    void setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * @return time before which records are expired or 0 if records don't expire
+     */
+    private long getExpireTime() {
+        final long maxAge = mMaxAge;
+        return maxAge > 0 ? System.currentTimeMillis() - maxAge : 0;
+    }
+
+    /**
+     * compacts head segment in background. Segments after head have no sent records, so only head
+     * is compacted and file space is proportional to not sent records that aren't expired.
+     */
+    private void scheduleCompaction(final JournalSegment head) {
+        if (mCompactionScheduled) {
+            return;
+        }
+
+        mCompactionScheduled = true;
+        getCommitExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    head.compact(mCompactionRatio, MIN_COMPACTION_BYTES, getExpireTime());
+                    synchronized (RequestJournal.this) {
+                        // sidecar index of compacted segment is saved again
+                        if (head == mSegments.peekLast()) {
+                            head.saveIndex();
+                        }
+                    }
+                } catch (IOException e) {
+                    WebtrekkLogging.log("can't compact journal segment: " + head.getFile().getName(), e);
+                } finally {
+                    synchronized (RequestJournal.this) {
+                        mCompactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * deletes all segments
+     */
+    synchronized void clear() {
+        if (mCommitFuture != null) {
+            mCommitFuture.cancel(false);
+            mCommitFuture = null;
+        }
+        mPendingRecords.clear();
+        mPendingBytes = 0;
+
+        for (JournalSegment segment : mSegments) {
+            segment.delete();
+        }
+        mSegments.clear();
+        mSize = 0;
+    }
+
+    /**
+     * seals all segments and moves them to inbox directory, journal is empty after that. Inbox file
+     * names start with time, so segments are adopted in order they are handed off.
+     *
+     * @param name unique name of this journal
+     * @return number of not sent records that are moved
+     */
+    synchronized int handOff(@NonNull File inbox, @NonNull String name) throws IOException {
+        writePending();
+        if (mSize == 0) {
+            return 0;
+        }
+        if (!inbox.isDirectory() && !inbox.mkdirs()) {
+            throw new IOException("can't create journal inbox " + inbox.getAbsolutePath());
+        }
+
+        final long now = System.currentTimeMillis();
+        int moved = 0;
+        final Iterator<JournalSegment> iterator = mSegments.iterator();
+        while (iterator.hasNext()) {
+            final JournalSegment segment = iterator.next();
+            if (segment.isConsumed()) {
+                segment.delete();
+                iterator.remove();
+                continue;
+            }
+
+            segment.seal();
+            final int available = segment.available();
+            final File file = new File(inbox, String.format(Locale.US, "%013d-%s-%010d", now, name, segment.getSequence())
+                    + JournalSegment.FILE_SUFFIX);
+            if (!segment.moveTo(file)) {
+                throw new IOException("can't move journal segment to inbox: " + segment.getFile().getName());
+            }
+            iterator.remove();
+            mSize -= available;
+            moved += available;
+        }
+
+        WebtrekkLogging.log("journal is handed off. Records: " + moved);
+        return moved;
+    }
+
+    /**
+     * adds segments from inbox directory to the end of journal. Tail segment is sealed before, so
+     * new records are appended after adopted ones.
+     *
+     * @return number of not sent records that are added
+     */
+    synchronized int adopt(@NonNull File inbox) throws IOException {
+        final File[] files = inbox.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JournalSegment.FILE_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("can't create journal directory " + mDirectory.getAbsolutePath());
+        }
+
+        writePending();
+        final JournalSegment tail = mSegments.peekLast();
+        if (tail != null && !tail.isSealed()) {
+            if (tail.isConsumed()) {
+                removeSegment(tail);
+            } else {
+                tail.seal();
+            }
+        }
+
+        Arrays.sort(files);
+        int added = 0;
+        for (File file : files) {
+            final File target = new File(mDirectory, JournalSegment.fileName(mNextSequence));
+            try {
+                // header is checked before file is changed
+                JournalSegment.open(file);
+                JournalSegment.writeSequence(file, mNextSequence);
+                if (!file.renameTo(target)) {
+                    throw new IOException("can't move journal segment from inbox: " + file.getName());
+                }
+                mNextSequence++;
+
+                final JournalSegment segment = JournalSegment.open(target);
+                mSegments.addLast(segment);
+                mSize += segment.available();
+                added += segment.available();
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't adopt journal segment, delete it: " + file.getName(), e);
+                file.delete();
+                target.delete();
+            }
+        }
+
+        WebtrekkLogging.log("journal segments are adopted. Records: " + added);
+        return added;
+    }
+
+    synchronized boolean exists() {
+        return !mSegments.isEmpty() || !mPendingRecords.isEmpty();
+    }
+
+    /**
+     * @return file of the segment where next url is written
+     */
+    synchronized File getTailFile() {
+        JournalSegment tail = mSegments.peekLast();
+        if (tail != null && !tail.isSealed()) {
+            return tail.getFile();
+        }
+        return new File(mDirectory, JournalSegment.fileName(mNextSequence));
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+}
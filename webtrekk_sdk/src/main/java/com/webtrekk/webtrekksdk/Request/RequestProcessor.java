@@ -18,19 +18,34 @@
 
 package com.webtrekk.webtrekksdk.Request;
 
+import android.os.Debug;
+
 import com.webtrekk.webtrekksdk.Utils.PinConnectionValidator;
 import com.webtrekk.webtrekksdk.Utils.Tls12SocketFactory;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 
 import static com.webtrekk.webtrekksdk.Utils.HelperFunctions.*;
 import static com.webtrekk.webtrekksdk.Webtrekk.isTls12Enabled;
@@ -39,27 +54,105 @@ import static com.webtrekk.webtrekksdk.Webtrekk.isTls12Enabled;
  * this class sends the requests to the server
  * it handles just the networking tasks
  *
+ * Connections are kept alive between requests: response body is read till the end instead of
+ * disconnect, and the same socket factory is used for all connections as connection pool doesn't
+ * reuse connections of other factories.
+ *
+ * If batch size is set, first urls of queue are sent in one POST request to batch endpoint of track
+ * domain. Batch is removed from queue as a whole after server accepted or rejected it, and is kept
+ * if server or connection failed. If track domain has no batch endpoint, urls are sent one by one
+ * till the end of run. Batch body can be compressed with gzip, {@link RequestTransferMetrics}
+ * shows if it pays off.
+ *
+ * If concurrency is set, up to this number of first urls of queue are sent in parallel. Responses
+ * can come in any order and every acknowledged url is removed, so url that has to be retried is
+ * never lost and urls after it aren't sent twice.
+ *
+ * If round trip estimator is set, connect and read timeouts follow measured round trip time of
+ * current connection type instead of fixed minute, see {@link RoundTripEstimator}.
+ *
  * @hide
  */
 public class RequestProcessor implements Runnable {
 
     public static final int NETWORK_CONNECTION_TIMEOUT = 60 * 1000;  // 1 minute
     private static final int NETWORK_READ_TIMEOUT = 60 * 1000;  // 1 minute
+    // connection with bigger response body is closed instead of reading body till the end
+    private static final int MAX_DRAINED_RESPONSE_SIZE = 64 * 1024;
 
-    private final RequestUrlStore mRequestUrlStore;
+    // TLS 1.2 socket factory, is created once for all connections
+    private static SSLSocketFactory tls12SocketFactory;
+
+    private final RequestStorage mRequestUrlStore;
     private final PinConnectionValidator mValidator;
+    // maximum number of urls in one batch request, urls are sent one by one if it is less than 2
+    private final int mBatchSize;
+    // true if track domain doesn't support batch endpoint, urls are sent one by one till the end of run
+    private boolean mBatchUnsupported;
+    // maximum number of requests in flight
+    private final int mConcurrency;
+    private ExecutorService mSendExecutor;
+    // gzip level of batch bodies, 0 - bodies aren't compressed
+    private int mCompressionLevel;
+    private GzipBodyEncoder mEncoder;
+    private RequestTransferMetrics mTransferMetrics;
+    private String mConnectionType;
+    private RetryScheduler mRetryScheduler;
+    private RoundTripEstimator mRoundTripEstimator;
 
     public interface ProcessOutputCallback {
         void process(int statusCode, HttpsURLConnection connection);
     }
 
-    public RequestProcessor(RequestUrlStore requestUrlStore) {
+    public RequestProcessor(RequestStorage requestUrlStore) {
         this(requestUrlStore, null);
     }
 
-    public RequestProcessor(RequestUrlStore requestUrlStore, PinConnectionValidator validator) {
+    public RequestProcessor(RequestStorage requestUrlStore, PinConnectionValidator validator) {
+        this(requestUrlStore, validator, 0);
+    }
+
+    public RequestProcessor(RequestStorage requestUrlStore, PinConnectionValidator validator, int batchSize) {
+        this(requestUrlStore, validator, batchSize, 1);
+    }
+
+    public RequestProcessor(RequestStorage requestUrlStore, PinConnectionValidator validator, int batchSize, int concurrency) {
         mRequestUrlStore = requestUrlStore;
         mValidator = validator;
+        mBatchSize = batchSize;
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * @param level gzip level of batch bodies from 1 to 9, 0 if bodies aren't compressed
+     */
+    public void setCompressionLevel(int level) {
+        mCompressionLevel = level;
+    }
+
+    /**
+     * @param metrics counters of batch bodies
+     * @param connectionType type of current connection, bodies that are sent by this processor are counted for it
+     */
+    public void setTransferMetrics(RequestTransferMetrics metrics, String connectionType) {
+        mTransferMetrics = metrics;
+        mConnectionType = connectionType;
+    }
+
+    /**
+     * @param retryScheduler is notified if requests are sent or sending should be retried later
+     */
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        mRetryScheduler = retryScheduler;
+    }
+
+    /**
+     * @param estimator gives timeouts of requests and gets their round trip times
+     * @param connectionType type of current connection, the same as for transfer metrics
+     */
+    public void setRoundTripEstimator(RoundTripEstimator estimator, String connectionType) {
+        mRoundTripEstimator = estimator;
+        mConnectionType = connectionType;
     }
 
     /**
@@ -90,9 +183,7 @@ public class RequestProcessor implements Runnable {
 
         if(isTls12Enabled() && isTls12Supported()) {
             try {
-                SSLContext sc = SSLContext.getInstance("TLSv1.2");
-                sc.init(null, null, null);
-                urlConnection.setSSLSocketFactory(new Tls12SocketFactory(sc.getSocketFactory()));
+                urlConnection.setSSLSocketFactory(getTls12SocketFactory());
             }
             catch (Exception e) {
                 WebtrekkLogging.log("RequestProcessor: No TLSv1.2 support.", e);
@@ -102,6 +193,52 @@ public class RequestProcessor implements Runnable {
         return urlConnection;
     }
 
+    private static synchronized SSLSocketFactory getTls12SocketFactory() throws GeneralSecurityException {
+        if (tls12SocketFactory == null) {
+            SSLContext sc = SSLContext.getInstance("TLSv1.2");
+            sc.init(null, null, null);
+            tls12SocketFactory = new Tls12SocketFactory(sc.getSocketFactory());
+        }
+        return tls12SocketFactory;
+    }
+
+    /**
+     * reads the rest of response body, so connection is returned to the pool and is used by
+     * next request
+     *
+     * @return false if connection can't be reused and should be disconnected
+     */
+    private static boolean drainResponse(HttpURLConnection connection, int statusCode) {
+        InputStream in = null;
+        try {
+            in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in == null) {
+                return true;
+            }
+
+            final byte[] buffer = new byte[1024];
+            int size = 0;
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                size += count;
+                if (size > MAX_DRAINED_RESPONSE_SIZE) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("RequestProcessor: can't close response stream.", e);
+                }
+            }
+        }
+    }
+
     /**
      * sends the request to the server and returns the status code
      *
@@ -109,26 +246,91 @@ public class RequestProcessor implements Runnable {
      * @return statusCode, 0 for retry, -1 for remove, 200 for success
      */
     public int sendRequest(URL url, ProcessOutputCallback processOutput) throws InterruptedException {
+        return sendRequest(url, null, 0, false, processOutput);
+    }
+
+    /**
+     * sends urls of batch as lines of POST request body
+     *
+     * @param url batch endpoint
+     * @param body lines of batch, every line is a request url without track domain and track id
+     * @return statusCode, the same as for {@link #sendRequest(URL, ProcessOutputCallback)}
+     */
+    public int sendBatchRequest(URL url, String body) throws InterruptedException {
+        final long start = System.nanoTime();
+        final byte[] raw = body.getBytes(JournalSegment.UTF_8);
+        byte[] data = raw;
+        int size = raw.length;
+        long compressionNanos = 0;
+        if (mCompressionLevel > 0) {
+            if (mEncoder == null) {
+                mEncoder = new GzipBodyEncoder(mCompressionLevel);
+            }
+            final long cpuStart = Debug.threadCpuTimeNanos();
+            size = mEncoder.encode(raw);
+            compressionNanos = Math.max(0, Debug.threadCpuTimeNanos() - cpuStart);
+            data = mEncoder.getOutput();
+        }
+
+        final int statusCode = sendRequest(url, data, size, mCompressionLevel > 0, null);
+        if (mTransferMetrics != null) {
+            mTransferMetrics.onBodySent(mConnectionType, raw.length, size, compressionNanos, System.nanoTime() - start);
+        }
+        return statusCode;
+    }
+
+    private int sendRequest(URL url, byte[] body, int bodySize, boolean gzip, ProcessOutputCallback processOutput) throws InterruptedException {
         HttpsURLConnection connection = null;
+        boolean keepAlive = false;
         try {
             connection = getUrlConnection(url);
 
             if (Thread.interrupted())
                 throw new InterruptedException();
 
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(NETWORK_CONNECTION_TIMEOUT);
-            connection.setReadTimeout(NETWORK_READ_TIMEOUT);
+            connection.setRequestMethod(body == null ? "GET" : "POST");
+            if (mRoundTripEstimator != null) {
+                final int timeout = mRoundTripEstimator.getTimeout(mConnectionType);
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+            } else {
+                connection.setConnectTimeout(NETWORK_CONNECTION_TIMEOUT);
+                connection.setReadTimeout(NETWORK_READ_TIMEOUT);
+            }
             connection.setUseCaches(false);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(bodySize);
+                connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+                if (gzip) {
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+            }
             connection.connect();
             if (mValidator != null) {
                 mValidator.validatePinning(connection);
             }
+            if (body != null) {
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body, 0, bodySize);
+                } finally {
+                    out.close();
+                }
+            }
+            // handshake and pin validation aren't part of sample, see RoundTripEstimator
+            final long start = System.nanoTime();
             int statusCode = connection.getResponseCode();
+            if (mRoundTripEstimator != null && body == null) {
+                mRoundTripEstimator.onResponse(mConnectionType, (System.nanoTime() - start) / 1000000);
+            } else if (mRoundTripEstimator != null) {
+                mRoundTripEstimator.resetBackoff(mConnectionType);
+            }
 
             if (processOutput != null)
                 processOutput.process(statusCode, connection);
 
+            keepAlive = drainResponse(connection, statusCode);
             return statusCode;
 
         } catch (EOFException e) {
@@ -136,6 +338,9 @@ public class RequestProcessor implements Runnable {
             return 500;
         } catch (SocketTimeoutException e) {
             WebtrekkLogging.log("RequestProcessor: SocketTimeout > Will retry later.", e);
+            if (mRoundTripEstimator != null) {
+                mRoundTripEstimator.onTimeout(mConnectionType);
+            }
             return 500;
         } catch (SocketException e) {
             WebtrekkLogging.log("RequestProcessor: Socket Exception.", e);
@@ -154,7 +359,7 @@ public class RequestProcessor implements Runnable {
             // IllegalStateException by setrequestproperty in case the connectin is already established
             // NPE
         } finally {
-            if (connection != null) {
+            if (connection != null && !keepAlive) {
                 connection.disconnect();
             }
         }
@@ -164,12 +369,48 @@ public class RequestProcessor implements Runnable {
 
     @Override
     public void run() {
+        // true if server responded at least once, false if sending should be retried later
+        boolean sent = false;
+        boolean retryLater = false;
         while (mRequestUrlStore.size() > 0) {
 
             Thread.yield();
             if (Thread.interrupted())
                 break;
 
+            if (mBatchSize > 1 && !mBatchUnsupported) {
+                final List<String> batch = mRequestUrlStore.peek(mBatchSize);
+                final int batchCount = getBatchCount(batch);
+                if (batchCount > 1) {
+                    try {
+                        if (!sendBatch(batch, batchCount)) {
+                            //try to send later
+                            retryLater = true;
+                            break;
+                        }
+                        sent = true;
+                    } catch (InterruptedException e) {
+                        // thread is interrupted exit from run loop
+                        break;
+                    }
+                    continue;
+                }
+                // single url is sent as usual request below
+            }
+
+            if (mConcurrency > 1) {
+                final List<String> window = mRequestUrlStore.peek(mConcurrency);
+                if (window.size() > 1) {
+                    if (!sendWindow(window)) {
+                        //try to send later
+                        retryLater = !Thread.currentThread().isInterrupted();
+                        break;
+                    }
+                    sent = true;
+                    continue;
+                }
+            }
+
             final String urlString = mRequestUrlStore.peek();
             if (urlString == null) {
                 mRequestUrlStore.removeLastURL();
@@ -189,12 +430,15 @@ public class RequestProcessor implements Runnable {
                     if (statusCode >= 200 && statusCode < 400) {
                         //successful send, remove url from store
                         mRequestUrlStore.removeLastURL();
+                        sent = true;
                     } else if (statusCode >= 500 && statusCode < 600) {
                         //try to send later
+                        retryLater = true;
                         break;
                     } else { //400-499 case
                         WebtrekkLogging.log("removing URL from queue as status code is between 400 and 499 or unexpected.");
                         mRequestUrlStore.removeLastURL();
+                        sent = true;
                     }
                 } catch (InterruptedException e) {
                     // thread is interrupted exit from run loop
@@ -203,8 +447,159 @@ public class RequestProcessor implements Runnable {
             }
         }
 
+        if (mSendExecutor != null) {
+            mSendExecutor.shutdownNow();
+            mSendExecutor = null;
+        }
+        if (mEncoder != null) {
+            mEncoder.release();
+            mEncoder = null;
+        }
+        if (mTransferMetrics != null && mBatchSize > 1) {
+            WebtrekkLogging.log("batch transfer: " + mTransferMetrics);
+        }
+        if (mRoundTripEstimator != null) {
+            WebtrekkLogging.log("round trip: " + mRoundTripEstimator);
+        }
+        if (mRetryScheduler != null) {
+            if (retryLater) {
+                mRetryScheduler.onFailure();
+            } else if (sent) {
+                mRetryScheduler.onSuccess();
+            }
+        }
+
         if (mRequestUrlStore.size() == 0)
             mRequestUrlStore.deleteRequestsFile();
         WebtrekkLogging.log("Processing URL task is finished");
     }
+
+    /**
+     * sends urls in parallel and removes ones that are acknowledged, even after url that should be
+     * retried. Only urls that should be retried or aren't answered are kept in queue.
+     *
+     * @return false if sending should be retried later
+     */
+    private boolean sendWindow(List<String> window) {
+        final List<Future<Integer>> results = new ArrayList<>(window.size());
+        for (final String urlString : window) {
+            results.add(getSendExecutor().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    final URL url = getUrl(urlString);
+                    if (url == null) {
+                        WebtrekkLogging.log("Removing invalid URL '" + urlString + "' from queue.");
+                        return -1;
+                    }
+                    return sendRequest(url, null);
+                }
+            }));
+        }
+
+        final boolean[] acknowledged = new boolean[window.size()];
+        boolean retry = false;
+        for (int i = 0; i < results.size(); i++) {
+            int statusCode;
+            try {
+                statusCode = results.get(i).get();
+            } catch (InterruptedException e) {
+                // thread is interrupted, requests that aren't acknowledged yet are sent next time
+                for (Future<Integer> request : results) {
+                    request.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                retry = true;
+                break;
+            } catch (ExecutionException e) {
+                WebtrekkLogging.log("RequestProcessor: request failed, will retry later.", e.getCause());
+                statusCode = 500;
+            }
+
+            WebtrekkLogging.log("received status " + statusCode);
+            if (statusCode >= 500 && statusCode < 600) {
+                retry = true;
+            } else {
+                acknowledged[i] = true;
+            }
+        }
+
+        mRequestUrlStore.removeLastURLs(acknowledged);
+        return !retry;
+    }
+
+    private ExecutorService getSendExecutor() {
+        if (mSendExecutor == null) {
+            mSendExecutor = Executors.newFixedThreadPool(mConcurrency, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mSendExecutor;
+    }
+
+    /**
+     * @return number of urls from the beginning of batch that have the same batch endpoint
+     */
+    private int getBatchCount(List<String> batch) {
+        if (batch.isEmpty() || getUrl(batch.get(0)) == null) {
+            return 0;
+        }
+
+        final String endpoint = getBatchEndpoint(batch.get(0));
+        int count = 1;
+        while (count < batch.size() && endpoint.equals(getBatchEndpoint(batch.get(count))) && getUrl(batch.get(count)) != null) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return url of batch endpoint, it is in the same directory as request, e.g.
+     * https://q3.webtrekk.net/123451234512345/batch for https://q3.webtrekk.net/123451234512345/wt?p=...
+     */
+    static String getBatchEndpoint(String url) {
+        final int query = url.indexOf('?');
+        final int slash = url.lastIndexOf('/', query < 0 ? url.length() - 1 : query);
+        return url.substring(0, slash + 1) + "batch";
+    }
+
+    /**
+     * sends first urls of batch in one request and removes them from queue if server accepted or
+     * rejected them. Urls are kept if batch endpoint isn't found, so they are sent one by one.
+     *
+     * @return false if sending should be retried later
+     */
+    private boolean sendBatch(List<String> batch, int count) throws InterruptedException {
+        final String endpoint = getBatchEndpoint(batch.get(0));
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final String url = batch.get(i);
+            final int query = url.indexOf('?');
+            body.append(url, url.lastIndexOf('/', query < 0 ? url.length() - 1 : query) + 1, url.length()).append('\n');
+        }
+
+        final int statusCode = sendBatchRequest(getUrl(endpoint), body.toString());
+        WebtrekkLogging.log("received status " + statusCode + " for batch of " + count + " requests");
+        if (statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_BAD_METHOD
+                || statusCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+            WebtrekkLogging.log("batch endpoint isn't supported by track domain, requests are sent one by one.");
+            mBatchUnsupported = true;
+            return true;
+        }
+
+        if (statusCode < 200 || statusCode >= 500) {
+            // server or connection failed, batch is kept as a whole
+            return false;
+        }
+
+        if (statusCode >= 400) {
+            WebtrekkLogging.log("removing batch from queue as server rejected it with status code " + statusCode);
+        }
+        mRequestUrlStore.removeLastURLs(count);
+        return true;
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counters of request queue. Values are collected from start of the application, they aren't persisted.
+ */
+public class RequestQueueMetrics {
+
+    private final AtomicLong[] mDropped = new AtomicLong[TrackingRequest.RequestType.values().length];
+    private final AtomicLong mLost = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+
+    RequestQueueMetrics() {
+        for (int i = 0; i < mDropped.length; i++) {
+            mDropped[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @return sum of counters of all lanes of {@link LaneRequestStorage} at the time of call
+     */
+    static RequestQueueMetrics sum(RequestQueueMetrics... parts) {
+        final RequestQueueMetrics sum = new RequestQueueMetrics();
+        for (RequestQueueMetrics part : parts) {
+            for (int i = 0; i < sum.mDropped.length; i++) {
+                sum.mDropped[i].addAndGet(part.mDropped[i].get());
+            }
+            sum.mLost.addAndGet(part.mLost.get());
+            sum.mExpired.addAndGet(part.mExpired.get());
+        }
+        return sum;
+    }
+
+    void onDropped(TrackingRequest.RequestType type) {
+        mDropped[type.ordinal()].incrementAndGet();
+    }
+
+    void onLost() {
+        mLost.incrementAndGet();
+    }
+
+    void onExpired() {
+        mExpired.incrementAndGet();
+    }
+
+    /**
+     * @return number of requests of given type that were dropped because queue reached maxRequests
+     */
+    public long getDroppedCount(TrackingRequest.RequestType type) {
+        return mDropped[type.ordinal()].get();
+    }
+
+    /**
+     * @return number of all requests that were dropped because queue reached maxRequests
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (AtomicLong dropped : mDropped) {
+            count += dropped.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of requests that were skipped because their records in journal are corrupted
+     */
+    public long getLostCount() {
+        return mLost.get();
+    }
+
+    /**
+     * @return number of requests that were skipped because they were older than max request age
+     */
+    public long getExpiredCount() {
+        return mExpired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "dropped: " + getDroppedCount() + " lost: " + getLostCount() + " expired: " + getExpiredCount();
+    }
+}
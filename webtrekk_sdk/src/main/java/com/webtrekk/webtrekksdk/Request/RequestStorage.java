@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.List;
+
+/**
+ * storage of request urls that aren't sent yet. Urls are sent in the same order as they are added.
+ * {@link RequestFactory} creates storage according to {@link Type} from configuration.
+ */
+public interface RequestStorage {
+
+    /**
+     * defines where urls are kept
+     */
+    enum Type {
+        // urls are kept in memory and saved to journal files, see {@link RequestUrlStore}
+        FILE,
+        // every url is a row in SQLite database, see {@link SQLiteRequestStorage}
+        SQLITE,
+        // urls are kept in memory only and are lost if process is killed, see {@link MemoryRequestStorage}
+        MEMORY
+    }
+
+    /**
+     * adds a new url string of general request to the storage
+     *
+     * @param requestUrl string representation of a tracking request
+     */
+    void addURL(String requestUrl);
+
+    /**
+     * adds a new url string to the storage, drops request according to overflow policy if the
+     * maximum request limit is exceeded
+     *
+     * @param requestUrl string representation of a tracking request
+     * @param type type of request, is used by {@link RequestUrlStore.OverflowPolicy#DROP_LOWEST_PRIORITY}
+     */
+    void addURL(String requestUrl, TrackingRequest.RequestType type);
+
+    /**
+     * @return first not sent url or null if storage is empty
+     */
+    String peek();
+
+    /**
+     * removes url that is returned by latest {@link #peek()}
+     */
+    void removeLastURL();
+
+    /**
+     * returns first not sent urls to send them in one batch
+     *
+     * @param maxCount maximum number of urls in batch
+     * @return urls from the head of queue, empty list if storage is empty
+     */
+    List<String> peek(int maxCount);
+
+    /**
+     * removes first urls of the batch that is returned by latest {@link #peek(int)}. Urls of the
+     * batch that are already dropped by overflow policy are counted as removed.
+     *
+     * @param count number of sent urls from the beginning of batch
+     */
+    void removeLastURLs(int count);
+
+    /**
+     * removes urls of the batch that is returned by latest {@link #peek(int)} and are sent, in any
+     * order. Urls after not sent one aren't sent again, even if storage keeps them till the not
+     * sent url is removed.
+     *
+     * @param sent flags of batch urls, true if url is sent
+     */
+    void removeLastURLs(boolean[] sent);
+
+    int size();
+
+    /**
+     * @return false if storage isn't ready yet and {@link #size()} would wait for it
+     */
+    boolean isReady();
+
+    /**
+     * saves urls that are kept in memory
+     */
+    void flush();
+
+    /**
+     * resets internal state if storage is empty
+     */
+    void reset();
+
+    /**
+     * removes all urls
+     */
+    void clearAllTrackingData();
+
+    /**
+     * releases saved data, should be called after all requests are sent
+     */
+    void deleteRequestsFile();
+
+    /**
+     * @return counters of dropped and lost requests
+     */
+    RequestQueueMetrics getMetrics();
+}
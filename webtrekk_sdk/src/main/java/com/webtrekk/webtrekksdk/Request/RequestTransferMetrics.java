@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * counters of batch request bodies per connection type, see
+ * {@link com.webtrekk.webtrekksdk.Utils.HelperFunctions#getConnectionString}. They show whether
+ * compression pays off: saved bytes against CPU time that is spent on compression and send time.
+ * Values are collected from start of the application, they aren't persisted.
+ */
+public class RequestTransferMetrics {
+
+    private final Map<String, Counters> mCounters = new TreeMap<>();
+
+    /**
+     * counters of one connection type
+     */
+    public static class Counters {
+        private long mBodies;
+        private long mRawBytes;
+        private long mSentBytes;
+        private long mCompressionNanos;
+        private long mSendNanos;
+
+        /**
+         * @return number of sent bodies
+         */
+        public long getBodyCount() {
+            return mBodies;
+        }
+
+        /**
+         * @return size of bodies before compression
+         */
+        public long getRawBytes() {
+            return mRawBytes;
+        }
+
+        /**
+         * @return size of bodies that are sent to server
+         */
+        public long getSentBytes() {
+            return mSentBytes;
+        }
+
+        /**
+         * @return thread CPU time that is spent on compression
+         */
+        public long getCompressionNanos() {
+            return mCompressionNanos;
+        }
+
+        /**
+         * @return time from connection till response including compression
+         */
+        public long getSendNanos() {
+            return mSendNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "bodies: " + mBodies + " raw: " + mRawBytes + " B sent: " + mSentBytes
+                    + " B compression: " + mCompressionNanos / 1000 + " us send: " + mSendNanos / 1000000 + " ms";
+        }
+    }
+
+    void onBodySent(String connectionType, int rawBytes, int sentBytes, long compressionNanos, long sendNanos) {
+        synchronized (mCounters) {
+            Counters counters = mCounters.get(connectionType);
+            if (counters == null) {
+                counters = new Counters();
+                mCounters.put(connectionType, counters);
+            }
+            counters.mBodies++;
+            counters.mRawBytes += rawBytes;
+            counters.mSentBytes += sentBytes;
+            counters.mCompressionNanos += compressionNanos;
+            counters.mSendNanos += sendNanos;
+        }
+    }
+
+    /**
+     * @param connectionType type of connection, e.g. "WIFI" or "4G"
+     * @return copy of counters or null if nothing is sent over this connection type
+     */
+    public Counters getCounters(String connectionType) {
+        synchronized (mCounters) {
+            final Counters counters = mCounters.get(connectionType);
+            if (counters == null) {
+                return null;
+            }
+            final Counters copy = new Counters();
+            copy.mBodies = counters.mBodies;
+            copy.mRawBytes = counters.mRawBytes;
+            copy.mSentBytes = counters.mSentBytes;
+            copy.mCompressionNanos = counters.mCompressionNanos;
+            copy.mSendNanos = counters.mSendNanos;
+            return copy;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mCounters) {
+            return mCounters.toString();
+        }
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.webtrekk.webtrekksdk.Request;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.LruCache;
@@ -26,407 +27,1118 @@ import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
-import java.util.Collections;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * this class acts as a local storage for the url strings before they are sent
  * it gets instantiated only once by the main Webtrekk class
+ *
+ * Journal is opened in background, so creation of the store doesn't wait for file reading. Urls that
+ * are added before that are kept in memory and are added after urls from journal. Methods that
+ * need journal wait till it is opened.
+ *
+ * Urls that aren't in cache are loaded from journal in groups. While one group is sent the next
+ * one is read in background, so sending of big queue doesn't wait for file reads.
+ *
+ * Every process of application has its own journal, so processes don't write to the same files.
+ * Requests are sent only by one process that holds sender lock. Other processes move their journal
+ * segments to inbox directory instead of sending, sender adds them to its queue.
+ *
+ * If max request age is set, requests that are older than it are skipped by {@link #peek()} and
+ * aren't sent. Expired requests in journal are recognized by record time without decoding.
+ *
+ * Urls of window that are sent after not sent one are kept in queue as sent till they are at the
+ * head of queue, peeks skip them, so they aren't sent again by this process.
  */
 
-public class RequestUrlStore {
+public class RequestUrlStore implements RequestStorage {
 
+    /**
+     * defines what is dropped if new request is added to the queue that already has maxRequests requests
+     */
+    public enum OverflowPolicy {
+        // oldest request in the queue is dropped
+        DROP_OLDEST,
+        // new request is dropped
+        DROP_NEWEST,
+        // oldest request is dropped if new request has the same or higher priority, otherwise new request is dropped.
+        // Only head of the queue is compared as requests are removed from the head only.
+        DROP_LOWEST_PRIORITY
+    }
+
+    // file of previous SDK versions with one url per line
     final static private String FILE_NAME = "wt-tracking-requests";
-    final private File mRequestStoreFile;
+    final static private String JOURNAL_DIR_NAME = "wt-tracking-journal";
+    // journal segments of other processes that are handed off to sender process
+    final static private String INBOX_DIR_NAME = "wt-tracking-inbox";
+    // file that is locked by sender process while it is alive
+    final static private String SENDER_LOCK_FILE_NAME = "wt-tracking-sender.lock";
+    final static private long INBOX_CHECK_INTERVAL_MS = 1000;
+    final static private int MIN_CACHE_SIZE = 32 * 1024;
+    final static private int MAX_CACHE_SIZE = 1024 * 1024;
+    // placeholder of url that is lost because of journal corruption, is compared by reference
+    final static private String LOST_URL = new String("lost");
+    final private RequestJournal mJournal;
+    final private File mInbox;
+    // unique name of process journal
+    final private String mJournalName;
+    // name of lane or null for main lane
+    final private String mLaneName;
+    // sender lock is held by process till it is finished, so it is shared by all stores of process
+    private static FileLock senderLock;
+    private volatile boolean mIsSender;
+    private long mLastInboxCheck;
     final private LruCache<Integer, String> mURLCache;
-    // keys for current queue. Key can be point to not loaded URL
-    final private SortedMap<Integer, Long> mIDs = Collections.synchronizedSortedMap(new TreeMap<Integer, Long>());
+    // guards queue IDs, cache and loaded urls
+    final private Object mLock = new Object();
     final int mReadGroupSize = 200;
-    final private Map<Integer, String> mLoadedIDs = new HashMap<>(mReadGroupSize);
+    // urls loaded from journal, first one has mFirstID
+    final private ArrayDeque<String> mLoadedURLs = new ArrayDeque<>(mReadGroupSize);
+    // next group of urls that is read in background, first one has mReadAheadFirstID
+    private Future<ReadGroup> mReadAhead;
+    private int mReadAheadFirstID;
+    // opens journal and reads urls ahead
+    private ThreadPoolExecutor mBackgroundExecutor;
+    final private CountDownLatch mOpenLatch = new CountDownLatch(1);
+    private boolean mIsOpened;
+    // urls that are added before journal is opened
+    final private List<String> mEarlyURLs = new ArrayList<>();
+    final private List<TrackingRequest.RequestType> mEarlyTypes = new ArrayList<>();
+    final private List<Long> mEarlyTimes = new ArrayList<>();
+    // request types of IDs that aren't saved to journal yet
+    final private Map<Integer, TrackingRequest.RequestType> mUnsavedTypes = new HashMap<>();
+    // times when requests are added for IDs that are in cache
+    final private Map<Integer, Long> mURLTimes = new HashMap<>();
+    // IDs that are sent already, but aren't removed yet as not sent ID is before them
+    final private Set<Integer> mSentIDs = new HashSet<>();
+    // requests that are older than this age in milliseconds aren't sent, 0 if requests don't expire
+    private volatile long mMaxRequestAge;
+    final private int mMaxRequests;
+    final private OverflowPolicy mOverflowPolicy;
+    final private RequestQueueMetrics mMetrics = new RequestQueueMetrics();
 
+    // IDs in queue are continuous, queue contains IDs from mFirstID to mIndex - 1.
+    // ID of the first not sent url
+    private int mFirstID;
     // Next string index
     private int mIndex;
-    // current read index in file
+    // latest ID that is saved to journal. All IDs before it are in journal as well.
     private volatile long mLatestSavedURLID = -1;
+    // ID that is returned by latest peek and is being sent now
+    private int mPeekedID = NO_PEEKED_ID;
+    private static final int NO_PEEKED_ID = -1;
+    // number of urls of batch that is returned by latest peek(int) and is being sent now
+    private int mPeekedCount;
+    // number of urls of batch that are already dropped by overflow policy
+    private int mPeekedDroppedCount;
+    private static final int PEEKED_ID_DROPPED = -2;
     private static String URL_STORE_CURRENT_SIZE = "URL_STORE_CURRENT_SIZE";
     private static String URL_STORE_SENT_URL_OFFSET = "URL_STORE_SENT_URL_OFFSET";
     final private Context mContext;
 
     /**
-     * constructs a new RequestUrlStore object
+     * constructs a new RequestUrlStore object without limit of queue size
      *
      * @param context the application/activity context to find the cache dir
      */
     public RequestUrlStore(Context context) {
-        if (context == null) {
-            throw new IllegalArgumentException("no valid context");
-        }
+        this(context, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST, 0);
+    }
 
-        mContext = context;
-        mRequestStoreFile = new File(context.getFilesDir(), FILE_NAME);
+    /**
+     * constructs a new RequestUrlStore object with cache size defined by device memory class
+     *
+     * @param context the application/activity context to find the cache dir
+     * @param maxRequests maximum number of requests in queue
+     * @param overflowPolicy defines which request is dropped if queue is full
+     */
+    public RequestUrlStore(Context context, int maxRequests, OverflowPolicy overflowPolicy) {
+        this(context, maxRequests, overflowPolicy, 0);
+    }
+
+    /**
+     * constructs a new RequestUrlStore object
+     *
+     * @param context the application/activity context to find the cache dir
+     * @param maxRequests maximum number of requests in queue
+     * @param overflowPolicy defines which request is dropped if queue is full
+     * @param cacheSize size of not saved urls in memory in bytes, if 0 size is defined by device memory class
+     */
+    public RequestUrlStore(Context context, int maxRequests, OverflowPolicy overflowPolicy, int cacheSize) {
+        this(context, maxRequests, overflowPolicy, cacheSize, null);
+    }
 
-        File fileInCash = new File(context.getCacheDir(), FILE_NAME);
+    /**
+     * @param processName name of process, if null name of current process is used
+     */
+    RequestUrlStore(Context context, int maxRequests, OverflowPolicy overflowPolicy, int cacheSize, String processName) {
+        this(context, maxRequests, overflowPolicy, cacheSize, processName, null);
+    }
 
-        if (fileInCash.exists() && !mRequestStoreFile.exists()) {
-            fileInCash.renameTo(mRequestStoreFile);
+    /**
+     * @param processName name of process, if null name of current process is used
+     * @param laneName name of lane of {@link LaneRequestStorage}, lane has own journal and inbox.
+     *                 Null for main lane that uses directories of previous versions.
+     */
+    RequestUrlStore(Context context, int maxRequests, OverflowPolicy overflowPolicy, int cacheSize, String processName, String laneName) {
+        if (context == null) {
+            throw new IllegalArgumentException("no valid context");
         }
 
-        initFileAttributes();
+        mContext = context;
+        mMaxRequests = maxRequests;
+        mOverflowPolicy = overflowPolicy;
+        mLaneName = laneName;
+        mJournalName = getJournalName(context, processName == null ? HelperFunctions.getProcessName(context) : processName);
+        final String journalDirName = laneName == null ? JOURNAL_DIR_NAME : JOURNAL_DIR_NAME + "-" + laneName;
+        mJournal = new RequestJournal(new File(context.getFilesDir(),
+                mJournalName == null ? journalDirName : journalDirName + "-" + mJournalName));
+        mInbox = new File(context.getFilesDir(), laneName == null ? INBOX_DIR_NAME : INBOX_DIR_NAME + "-" + laneName);
 
-        final int maxSize = 20;
+        final int maxSize = cacheSize > 0 ? cacheSize : getDefaultCacheSize(context);
+        WebtrekkLogging.log("request cache size: " + maxSize);
 
         mURLCache = new LruCache<Integer, String>(maxSize) {
+            @Override
+            protected int sizeOf(Integer key, String value) {
+                // string chars and object overhead
+                return value.length() * 2 + 40;
+            }
+
             @Override
             protected void entryRemoved(boolean evicted, Integer key, final String oldValue, String newValue) {
-                if (evicted && oldValue != null) {
-                    saveURLsToFile(new SaveURLAction() {
-                        @Override
-                        public void onSave(PrintWriter writer) {
-                            writer.println(oldValue);
-                        }
-                    });
-
-                    mLatestSavedURLID = key;
+                if (evicted && oldValue != null && key > mLatestSavedURLID && key >= mFirstID) {
+                    saveURLsToFile(key, oldValue);
+                }
+                if (evicted) {
+                    // time of saved url is in journal
+                    mURLTimes.remove(key);
                 }
             }
         };
+
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
     }
 
-    private void initFileAttributes() {
-        synchronized (mIDs) {
-            SharedPreferences pref = HelperFunctions.getWebTrekkSharedPreference(mContext);
-            int index = mIndex = pref.getInt(URL_STORE_CURRENT_SIZE, 0);
-            long sentURLFileOffset = pref.getLong(URL_STORE_SENT_URL_OFFSET, -1);
-            WebtrekkLogging.log("read store size: " + index);
+    /**
+     * opens journal and adds urls that were added in the meantime
+     */
+    private void open() {
+        try {
+            mIsSender = tryAcquireSenderLock();
+            mJournal.open();
+            if (mIsSender && mLaneName == null) {
+                // file of previous SDK versions is shared by all processes
+                migrateRequestsFile();
+            }
+            initFileAttributes();
+        } finally {
+            synchronized (mLock) {
+                mIsOpened = true;
+                for (int i = 0; i < mEarlyURLs.size(); i++) {
+                    addURL(mEarlyURLs.get(i), mEarlyTypes.get(i), mEarlyTimes.get(i));
+                }
+                mEarlyURLs.clear();
+                mEarlyTypes.clear();
+                mEarlyTimes.clear();
+            }
+            mOpenLatch.countDown();
+        }
+    }
+
+    /**
+     * @return name that is added to journal directory of process or null for main process
+     */
+    private static String getJournalName(Context context, String processName) {
+        if (processName.equals(context.getPackageName())) {
+            return null;
+        }
+        final int separator = processName.indexOf(':');
+        return processName.substring(separator + 1).replaceAll("[^A-Za-z0-9_]", "_");
+    }
 
-            for (int i = 0; i < index; i++) {
-                mIDs.put(i, -1l);
+    /**
+     * tries to lock sender file. Lock is released by system when process is finished.
+     *
+     * @return true if current process is sender
+     */
+    private static synchronized boolean acquireSenderLock(Context context) {
+        if (senderLock != null) {
+            return true;
+        }
+
+        try {
+            final FileChannel channel = new RandomAccessFile(new File(context.getFilesDir(), SENDER_LOCK_FILE_NAME), "rw").getChannel();
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                return false;
+            }
+            senderLock = lock;
+            WebtrekkLogging.log("process is request sender: " + HelperFunctions.getProcessName(context));
+            return true;
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't lock request sender file", e);
+            return false;
+        }
+    }
+
+    /**
+     * sender lock is held by the whole process, is overridden in unit tests to act as other process
+     *
+     * @return true if current process is sender
+     */
+    boolean tryAcquireSenderLock() {
+        return acquireSenderLock(mContext);
+    }
+
+    /**
+     * other process can become sender if sender process is finished. Should be called under lock.
+     */
+    private boolean isSender() {
+        if (!mIsSender) {
+            mIsSender = tryAcquireSenderLock();
+        }
+        return mIsSender;
+    }
+
+    /**
+     * adds requests that were handed off by other processes to the end of queue
+     *
+     * @param force true if inbox is checked now, otherwise not more often than {@link #INBOX_CHECK_INTERVAL_MS}
+     */
+    private void adoptInbox(boolean force) {
+        synchronized (mLock) {
+            final long now = System.currentTimeMillis();
+            if (!force && now - mLastInboxCheck < INBOX_CHECK_INTERVAL_MS) {
+                return;
+            }
+            mLastInboxCheck = now;
+
+            final String[] files = mInbox.list();
+            if (files == null || files.length == 0 || !isSender()) {
+                return;
             }
 
-            if (index > 0) {
-                mIDs.put(0, sentURLFileOffset);
+            // adopted requests get IDs after all current ones, so current ones are saved before
+            if (hasSpareIds()) {
+                final int lastID = mIndex - 1;
+                saveURLsToFile(lastID, mURLCache.get(lastID));
             }
+
+            try {
+                final int added = mJournal.adopt(mInbox);
+                mIndex += added;
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't adopt requests of other processes", e);
+            }
+            mLatestSavedURLID = mIndex - 1;
         }
     }
 
-    private void writeFileAttributes() {
-        synchronized (mIDs) {
-            WebtrekkLogging.log("save store size: " + mIDs.size());
-            SharedPreferences.Editor prefEdit = HelperFunctions.getWebTrekkSharedPreference(mContext).edit();
-            prefEdit.putLong(URL_STORE_SENT_URL_OFFSET, mIDs.isEmpty() ? -1 : mIDs.get(mIDs.firstKey()));
-            prefEdit.putInt(URL_STORE_CURRENT_SIZE, mIDs.size()).apply();
+    /**
+     * moves all requests to inbox of sender process, queue of this process is empty after that.
+     *
+     * @return false if requests can't be handed off
+     */
+    private boolean handOff() {
+        synchronized (mLock) {
+            if (queueSize() == 0) {
+                return true;
+            }
+
+            if (hasSpareIds()) {
+                final int lastID = mIndex - 1;
+                saveURLsToFile(lastID, mURLCache.get(lastID));
+            }
+
+            boolean handedOff = true;
+            try {
+                mJournal.handOff(mInbox, mJournalName == null ? mContext.getPackageName() : mJournalName);
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't hand off requests to sender process", e);
+                handedOff = false;
+            }
+
+            // requests that aren't handed off stay in journal
+            clearIds();
+            initFileAttributes();
+            return handedOff;
+        }
+    }
+
+    /**
+     * @return false if thread is interrupted before journal is opened
+     */
+    private boolean waitForOpen() {
+        try {
+            mOpenLatch.await();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * cache size is 1/256 of application memory class, so devices with little memory save urls
+     * to journal earlier
+     */
+    private static int getDefaultCacheSize(Context context) {
+        int memoryClass = 16;
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            memoryClass = activityManager.getMemoryClass();
+        }
+
+        final int size = memoryClass * 1024 * 1024 / 256;
+        return Math.max(MIN_CACHE_SIZE, Math.min(MAX_CACHE_SIZE, size));
+    }
+
+    /**
+     * moves not sent urls from line oriented file of previous SDK versions to journal
+     */
+    private void migrateRequestsFile() {
+        File requestStoreFile = new File(mContext.getFilesDir(), FILE_NAME);
+        File fileInCash = new File(mContext.getCacheDir(), FILE_NAME);
+
+        if (fileInCash.exists() && !requestStoreFile.exists()) {
+            fileInCash.renameTo(requestStoreFile);
+        }
+
+        if (!requestStoreFile.exists()) {
+            return;
+        }
+
+        SharedPreferences pref = HelperFunctions.getWebTrekkSharedPreference(mContext);
+        final int size = pref.getInt(URL_STORE_CURRENT_SIZE, 0);
+        final long offset = pref.getLong(URL_STORE_SENT_URL_OFFSET, -1);
+        WebtrekkLogging.log("migrate request file to journal. Size: " + size);
+
+        List<String> urls = new ArrayList<>(Math.min(size, mReadGroupSize));
+        List<TrackingRequest.RequestType> types = new ArrayList<>(Math.min(size, mReadGroupSize));
+        List<Long> times = new ArrayList<>(Math.min(size, mReadGroupSize));
+        // old file has no request time, so migration time is used
+        final long now = System.currentTimeMillis();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(requestStoreFile), "UTF-8"));
+            try {
+                reader.skip(offset < 0 ? 0 : offset);
+                String line;
+                int count = 0;
+                while (count++ < size && (line = reader.readLine()) != null) {
+                    urls.add(line);
+                    types.add(TrackingRequest.RequestType.GENERAL);
+                    times.add(now);
+                    if (urls.size() >= mReadGroupSize) {
+                        mJournal.append(urls, types, times);
+                        urls.clear();
+                        types.clear();
+                        times.clear();
+                    }
+                }
+                mJournal.append(urls, types, times);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't migrate request file. Not migrated URLs are lost.", e);
+        }
+
+        if (!requestStoreFile.delete()) {
+            WebtrekkLogging.log("can't delete old request file");
+        }
+
+        pref.edit().remove(URL_STORE_CURRENT_SIZE).remove(URL_STORE_SENT_URL_OFFSET).apply();
+    }
+
+    private void initFileAttributes() {
+        synchronized (mLock) {
+            // all journal records get IDs without any per ID allocation
+            mFirstID = 0;
+            mIndex = mJournal.size();
+            mLatestSavedURLID = mIndex - 1;
+            mLoadedURLs.clear();
+            cancelReadAhead();
+            WebtrekkLogging.log("read store size: " + mIndex);
         }
     }
 
-    private interface SaveURLAction {
-        void onSave(PrintWriter writer);
+    private void writeFileAttributes() {
+        synchronized (mLock) {
+            WebtrekkLogging.log("save store size: " + queueSize());
+            mJournal.commit();
+        }
     }
 
+    @Override
     public void reset() {
         // reset only if class is removed
-        synchronized (mIDs) {
-            if (mIDs.isEmpty()) {
+        synchronized (mLock) {
+            if (mIsOpened && queueSize() == 0) {
                 initFileAttributes();
             }
         }
     }
 
-    // Save URL to file
-    private void saveURLsToFile(SaveURLAction action) {
-        try {
-            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mRequestStoreFile, true), "UTF-8")));
+    /**
+     * saves to journal all not saved URLs up to and including lastID.
+     * URLs are saved in order of IDs, so journal order is the same as queue order.
+     *
+     * @param lastID latest ID to save
+     * @param lastURL URL of lastID as it can be already removed from cache
+     */
+    private void saveURLsToFile(int lastID, String lastURL) {
+        synchronized (mLock) {
+            List<String> urls = new ArrayList<>();
+            List<TrackingRequest.RequestType> types = new ArrayList<>();
+            List<Long> times = new ArrayList<>();
+            for (int id = (int) Math.max(mLatestSavedURLID + 1, mFirstID); id <= lastID; id++) {
+                String url = id == lastID ? lastURL : mURLCache.get(id);
+                TrackingRequest.RequestType type = mUnsavedTypes.remove(id);
+                Long time = mURLTimes.get(id);
+                if (url != null) {
+                    urls.add(url);
+                    types.add(type == null ? TrackingRequest.RequestType.GENERAL : type);
+                    times.add(time == null ? System.currentTimeMillis() : time);
+                }
+            }
+
             try {
-                action.onSave(writer);
-            } finally {
-                writer.close();
+                mJournal.append(urls, types, times);
+            } catch (Exception e) {
+                WebtrekkLogging.log("can not save url ", e);
             }
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (Exception e) {
-            WebtrekkLogging.log("can not save url ", e);
+
+            mLatestSavedURLID = lastID;
         }
     }
 
     // flush to file all data, clear cache.
+    @Override
     public void flush() {
-        if (hasSpareIds()) {
-            saveURLsToFile(new SaveURLAction() {
-                @Override
-                public void onSave(PrintWriter writer) {
-                    synchronized (mIDs) {
-                        Set<Integer> mIDsKeySet = mIDs.keySet();
-                        for (Integer id : mIDsKeySet) {
-                            if (id <= mLatestSavedURLID) {
-                                continue;
-                            }
-
-                            String url = mURLCache.get(id);
-                            if (url != null) {
-                                writer.println(url);
-                                mLatestSavedURLID = id;
-                            }
-                        }
-                    }
-                }
-            });
+        if (!waitForOpen()) {
+            return;
+        }
+
+        synchronized (mLock) {
+            if (hasSpareIds()) {
+                final int lastID = mIndex - 1;
+                saveURLsToFile(lastID, mURLCache.get(lastID));
+            }
+            writeFileAttributes();
         }
-        writeFileAttributes();
         // for debug only uncomment
         //dumpFile();
     }
 
+    @Override
     public void clearAllTrackingData() {
+        if (!waitForOpen()) {
+            return;
+        }
+
+        // sender adopts requests of other processes, so they are cleared as well. Inbox itself isn't
+        // cleared, other process can hand off its segment right now.
+        adoptInbox(true);
         clearIds();
-        mLoadedIDs.clear();
-        mIndex = 0;
-        mLatestSavedURLID = -1;
         deleteRequestsFile();
-        writeFileAttributes();
     }
 
     private void clearIds() {
-        synchronized (mIDs) {
-            Set<Integer> mIDsKeySet = mIDs.keySet();
-            for (Integer id : mIDsKeySet) {
+        synchronized (mLock) {
+            for (int id = mFirstID; id < mIndex; id++) {
                 mURLCache.remove(id);
             }
 
-            mIDs.clear();
+            mLoadedURLs.clear();
+            cancelReadAhead();
+            mUnsavedTypes.clear();
+            mURLTimes.clear();
+            mSentIDs.clear();
+            mPeekedID = NO_PEEKED_ID;
+            mPeekedCount = mPeekedDroppedCount = 0;
+            mFirstID = mIndex = 0;
+            mLatestSavedURLID = -1;
         }
     }
 
 
+    @Override
     public String peek() {
-        Integer id = getFirstId();
-        if (id == null) {
+        if (!waitForOpen()) {
             return null;
         }
 
-        String url = mURLCache.get(id);
-        if (url == null) {
-            url = mLoadedIDs.get(id);
-            if (url == null) {
-                // not url in cache, get it from file
-                if (mLoadedIDs.size() > 0) {
-                    WebtrekkLogging.log("Something wrong with logic. mLoadedIDs should be zero if url isn't found");
+        synchronized (mLock) {
+            // only sender process sends requests, other process sends itself only if it can't hand off
+            if (!isSender() && handOff()) {
+                return null;
+            }
+        }
+
+        while (true) {
+            final int id;
+            final Future<ReadGroup> readAhead;
+            final int readAheadFirstID;
+            synchronized (mLock) {
+                if (queueSize() == 0) {
+                    return null;
+                }
+
+                id = mFirstID;
+                mPeekedID = id;
+
+                if (mSentIDs.contains(id)) {
+                    // sent out of order
+                    removeFirst();
+                    continue;
+                }
+
+                String url = mURLCache.get(id);
+                if (url == null) {
+                    url = mLoadedURLs.peekFirst();
+                    if (url == LOST_URL) {
+                        // corrupted record is skipped, next records are still sent
+                        removeFirst();
+                        mMetrics.onLost();
+                        continue;
+                    }
+                }
+
+                if (url == RequestJournal.EXPIRED_URL || (url != null && isExpired(id))) {
+                    // stale request isn't sent
+                    removeFirst();
+                    mMetrics.onExpired();
+                    continue;
+                }
+
+                if (url != null) {
+                    return url;
+                }
+
+                if (id > mLatestSavedURLID || !isURLFileExists()) {
+                    WebtrekkLogging.log("No url in cache, but file doesn't exist as well. Some issue here. ID: " + id);
+                    return null;
+                }
+
+                readAhead = mReadAhead;
+                readAheadFirstID = mReadAheadFirstID;
+            }
+
+            if (readAhead != null) {
+                // next group is already read or is being read now
+                useReadAhead(readAhead, readAheadFirstID);
+            } else if (!loadRequestsFromFile(mReadGroupSize, id)) {
+                // file is corrupted or missed
+                deleteAllCachedIDs();
+            }
+        }
+    }
+
+    /**
+     * returns urls from the head of queue that are already in memory. Batch is finished before
+     * url that isn't loaded yet, is lost, is expired or is sent, so such url is handled by next peek.
+     */
+    @Override
+    public List<String> peek(int maxCount) {
+        final List<String> urls = new ArrayList<>();
+        while (true) {
+            // loads head of queue and skips lost and expired urls
+            final String first = peek();
+
+            synchronized (mLock) {
+                mPeekedCount = mPeekedDroppedCount = 0;
+                if (first == null) {
+                    return urls;
+                }
+                if (mPeekedID != mFirstID) {
+                    // head was dropped in the meantime
+                    continue;
                 }
 
-                Long mId = getValueById(id);
-                if (isURLFileExists() && mId != null) {
-                    if (loadRequestsFromFile(mReadGroupSize, mId, id)) {
-                        url = mLoadedIDs.get(id);
-                    } else { // file is corrupted or missed
-                        deleteAllCachedIDs();
-                        return mURLCache.get(id);
+                urls.add(first);
+                final Iterator<String> loaded = mLoadedURLs.iterator();
+                if (loaded.hasNext()) {
+                    loaded.next();
+                }
+                for (int id = mFirstID + 1; id < mIndex && urls.size() < maxCount; id++) {
+                    final String loadedURL = loaded.hasNext() ? loaded.next() : null;
+                    String url = mURLCache.get(id);
+                    if (url == null) {
+                        url = loadedURL;
+                    }
+                    if (url == null || url == LOST_URL || url == RequestJournal.EXPIRED_URL || isExpired(id) || mSentIDs.contains(id)) {
+                        break;
                     }
-                } else {
-                    WebtrekkLogging.log("No url in cache, but file doesn't exist as well. Some issue here");
+                    urls.add(url);
                 }
+
+                mPeekedID = NO_PEEKED_ID;
+                mPeekedCount = urls.size();
+                return urls;
             }
         }
+    }
+
+    @Override
+    public void removeLastURLs(int count) {
+        if (!waitForOpen()) {
+            return;
+        }
+
+        synchronized (mLock) {
+            // dropped urls are always at the beginning of batch
+            for (int i = Math.min(count - mPeekedDroppedCount, mPeekedCount); i > 0 && queueSize() > 0; i--) {
+                removeFirst();
+            }
+            mPeekedCount = mPeekedDroppedCount = 0;
+        }
+    }
 
-        if (url == null) {
-            WebtrekkLogging.log("Can't get URL something wrong. ID: " + id);
+    @Override
+    public void removeLastURLs(boolean[] sent) {
+        if (!waitForOpen()) {
+            return;
         }
 
-        return url;
+        synchronized (mLock) {
+            // dropped urls are always at the beginning of batch, batch has continuous IDs after them
+            for (int i = mPeekedDroppedCount; i < sent.length && i < mPeekedDroppedCount + mPeekedCount; i++) {
+                if (sent[i]) {
+                    mSentIDs.add(mFirstID + i - mPeekedDroppedCount);
+                }
+            }
+            mPeekedCount = mPeekedDroppedCount = 0;
+
+            while (queueSize() > 0 && mSentIDs.contains(mFirstID)) {
+                removeFirst();
+            }
+        }
     }
 
     private boolean isURLFileExists() {
-        return mRequestStoreFile.exists();
+        return mJournal.exists();
     }
 
 
     /**
-     * adds a new url string to the store, drops old ones if the maximum request limit is exceeded
+     * adds a new url string of general request to the store
      *
      * @param requestUrl string representation of a tracking request
      */
+    @Override
     public void addURL(String requestUrl) {
-        mURLCache.put(mIndex, requestUrl);
-        addToMap(mIndex++, -1l);
+        addURL(requestUrl, TrackingRequest.RequestType.GENERAL);
     }
 
-    public int size() {
-        synchronized (mIDs) {
-            return mIDs.size();
-        }
+    /**
+     * adds a new url string to the store, drops request according to overflow policy if the
+     * maximum request limit is exceeded
+     *
+     * @param requestUrl string representation of a tracking request
+     * @param type type of request, is used by {@link OverflowPolicy#DROP_LOWEST_PRIORITY}
+     */
+    @Override
+    public void addURL(String requestUrl, TrackingRequest.RequestType type) {
+        addURL(requestUrl, type, System.currentTimeMillis());
     }
 
-    public void removeLastURL() {
-        synchronized (mIDs) {
-            if (!mIDs.isEmpty()) {
-                removeKey(mIDs.firstKey());
+    private void addURL(String requestUrl, TrackingRequest.RequestType type, long time) {
+        synchronized (mLock) {
+            if (!mIsOpened) {
+                mEarlyURLs.add(requestUrl);
+                mEarlyTypes.add(type);
+                mEarlyTimes.add(time);
+                return;
+            }
+
+            if (queueSize() >= mMaxRequests && !makeRoom(type)) {
+                WebtrekkLogging.log("request queue is full, new request is dropped. Max requests: " + mMaxRequests);
+                mMetrics.onDropped(type);
+                return;
             }
+
+            mUnsavedTypes.put(mIndex, type);
+            mURLTimes.put(mIndex, time);
+            mURLCache.put(mIndex++, requestUrl);
         }
     }
 
-    private Integer getFirstId() {
-        synchronized (mIDs) {
-            if (!mIDs.isEmpty()) {
-                return mIDs.firstKey();
+    /**
+     * drops old requests until there is space for new one
+     *
+     * @return false if new request should be dropped instead
+     */
+    private boolean makeRoom(TrackingRequest.RequestType newType) {
+        while (queueSize() >= mMaxRequests) {
+            final TrackingRequest.RequestType headType = getHeadType();
+
+            switch (mOverflowPolicy) {
+                case DROP_NEWEST:
+                    return false;
+                case DROP_LOWEST_PRIORITY:
+                    if (headType.getPriority() > newType.getPriority()) {
+                        return false;
+                    }
+                    break;
+            }
+
+            if (mFirstID == mPeekedID) {
+                // request is being sent now, so sender shouldn't remove next one after it is done
+                mPeekedID = PEEKED_ID_DROPPED;
+            }
+            if (mPeekedCount > 0) {
+                mPeekedCount--;
+                mPeekedDroppedCount++;
             }
+            removeFirst();
+            mMetrics.onDropped(headType);
         }
 
-        return null;
+        WebtrekkLogging.log("request queue is full, old requests are dropped. Max requests: " + mMaxRequests);
+        return true;
     }
 
-    private Long getValueById(int id) {
-        synchronized (mIDs) {
-            if (mIDs.containsKey(id)) {
-                return mIDs.get(id);
+    private TrackingRequest.RequestType getHeadType() {
+        TrackingRequest.RequestType type = null;
+
+        if (mFirstID > mLatestSavedURLID) {
+            type = mUnsavedTypes.get(mFirstID);
+        } else {
+            try {
+                type = mJournal.getHeadType();
+            } catch (Exception e) {
+                WebtrekkLogging.log("can't read request type from journal", e);
             }
         }
 
-        return null;
+        return type == null ? TrackingRequest.RequestType.GENERAL : type;
+    }
+
+    /**
+     * sets when sent requests are removed from the beginning of journal file
+     *
+     * @param ratio size of sent requests to size of not sent ones
+     */
+    public void setCompactionRatio(float ratio) {
+        mJournal.setCompactionRatio(ratio);
+    }
+
+    /**
+     * sets age after which requests aren't sent
+     *
+     * @param maxAge age in milliseconds, 0 if requests don't expire
+     */
+    public void setMaxRequestAge(long maxAge) {
+        mMaxRequestAge = maxAge;
+        mJournal.setMaxAge(maxAge);
+    }
+
+    /**
+     * @return true if request with ID in cache is older than max request age. Should be called under lock.
+     */
+    private boolean isExpired(int id) {
+        final long maxAge = mMaxRequestAge;
+        final Long time = mURLTimes.get(id);
+        return maxAge > 0 && time != null && time < System.currentTimeMillis() - maxAge;
+    }
+
+    /**
+     * @return counters of dropped, lost and expired requests
+     */
+    @Override
+    public RequestQueueMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * waits till store is opened. Requests that are handed off by other processes are added to
+     * queue of sender process.
+     */
+    @Override
+    public int size() {
+        waitForOpen();
+        adoptInbox(false);
+        return queueSize();
     }
 
-    private void addToMap(int key, long value) {
-        synchronized (mIDs) {
-            mIDs.put(key, value);
+    private int queueSize() {
+        synchronized (mLock) {
+            return mIndex - mFirstID;
         }
     }
 
-    private void removeKey(int key) {
-        synchronized (mIDs) {
-            if (mIDs.containsKey(key)) {
-                if (mLoadedIDs.remove(key) == null) {
-                    mURLCache.remove(key);
-                }
+    /**
+     * @return false while journal is opened in background
+     */
+    @Override
+    public boolean isReady() {
+        synchronized (mLock) {
+            return mIsOpened;
+        }
+    }
+
+    @Override
+    public void removeLastURL() {
+        if (!waitForOpen()) {
+            return;
+        }
+
+        synchronized (mLock) {
+            if (mPeekedID == PEEKED_ID_DROPPED) {
+                // peeked url is already dropped by overflow policy
+                mPeekedID = NO_PEEKED_ID;
+                return;
+            }
 
-                mIDs.remove(key);
+            mPeekedID = NO_PEEKED_ID;
+            if (queueSize() > 0) {
+                removeFirst();
             }
         }
     }
 
+    /**
+     * removes first url from queue. Should be called under lock.
+     */
+    private void removeFirst() {
+        mLoadedURLs.pollFirst();
+        mURLCache.remove(mFirstID);
+        mUnsavedTypes.remove(mFirstID);
+        mURLTimes.remove(mFirstID);
+        mSentIDs.remove(mFirstID);
+
+        // URL is in journal, move journal head as well
+        if (mFirstID <= mLatestSavedURLID) {
+            mJournal.removeHead();
+        }
+
+        mFirstID++;
+    }
+
     private boolean hasSpareIds() {
-        synchronized (mIDs) {
-            if (mIDs.isEmpty()) {
+        synchronized (mLock) {
+            if (queueSize() == 0) {
                 return false;
             }
 
-            WebtrekkLogging.log("Flush items to memory. Size: " + mIDs.size() + " latest saved URL ID: " + mLatestSavedURLID + " latest IDS: " + mIDs.lastKey());
-            return mLatestSavedURLID < mIDs.lastKey();
+            WebtrekkLogging.log("Flush items to memory. Size: " + queueSize() + " latest saved URL ID: " + mLatestSavedURLID + " latest IDS: " + (mIndex - 1));
+            return mLatestSavedURLID < mIndex - 1;
         }
     }
 
     private void dumpFile() {
-        BufferedReader reader = null;
+        List<String> urls = new ArrayList<>();
         try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mRequestStoreFile), "UTF-8"));
+            mJournal.read(mJournal.getHeadPosition(), mJournal.size(), urls, new ArrayList<Long>());
 
             WebtrekkLogging.log("Dump flushed file start ------------------------------------------------");
-            String line;
-            while ((line = reader.readLine()) != null) {
-                WebtrekkLogging.log(line);
+            for (String url : urls) {
+                WebtrekkLogging.log(url);
             }
             WebtrekkLogging.log("Dump flushed file end --------------------------------------------------");
-            WebtrekkLogging.log("IDS: " + Arrays.asList(mIDs).toString());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            WebtrekkLogging.log("IDS: " + mFirstID + " - " + (mIndex - 1));
         } catch (IOException e) {
             e.printStackTrace();
         }
-
     }
 
     /**
-     * loads the requests from the cache file if present
+     * loads the requests from the head of journal. Reading is done without lock, so result is
+     * ignored if queue head was changed in the meantime. Reading of the next group is started
+     * after that.
      */
-    private boolean loadRequestsFromFile(int numbersToLoad, Long startOffset, int firstID) {
-        int id = firstID;
-        long offset = startOffset < 0 ? 0 : startOffset;
+    private boolean loadRequestsFromFile(int numbersToLoad, int firstID) {
+        final long position;
+        synchronized (mLock) {
+            if (firstID != mFirstID || !mLoadedURLs.isEmpty()) {
+                return true;
+            }
+            numbersToLoad = (int) Math.min(numbersToLoad, mLatestSavedURLID - firstID + 1);
+            position = mJournal.getHeadPosition();
+        }
 
+        List<String> urls = new ArrayList<>(numbersToLoad);
+        final long nextPosition;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mRequestStoreFile), "UTF-8"));
-            reader.skip(offset);
-            try {
-                String line;
-                int ind = 0;
-                // set offset for first id
-                addToMap(id, offset);
-                while ((line = reader.readLine()) != null && ind++ < numbersToLoad && mURLCache.get(id) == null) {
-                    if (getValueById(id) == null) {
-                        WebtrekkLogging.log("File is more than existed keys. Error. Key: " + id + " offset: " + offset);
-                        return false;
-                    }
-                    // put URL and increment id
-                    mLoadedIDs.put(id++, line);
-                    offset += (line.length() + System.getProperty("line.separator").length());
-                    // set offset of next id if exists
-                    if (mLatestSavedURLID >= id || mLatestSavedURLID == -1) {
-                        addToMap(id, offset);
-                    }
-                }
-            } finally {
-                reader.close();
-            }
+            nextPosition = mJournal.read(position, numbersToLoad, urls, new ArrayList<Long>(numbersToLoad));
         } catch (Exception e) {
-            WebtrekkLogging.log("cannot load backup file '" + mRequestStoreFile.getAbsolutePath() + "'", e);
+            WebtrekkLogging.log("cannot load requests from journal '" + mJournal.getDirectory().getAbsolutePath() + "'", e);
             return false;
         }
 
+        synchronized (mLock) {
+            if (firstID == mFirstID && mLoadedURLs.isEmpty()) {
+                if (urls.isEmpty()) {
+                    WebtrekkLogging.log("Journal is less than existed keys. Error. Key: " + firstID);
+                    return false;
+                }
+                addLoadedURLs(urls, 0);
+                startReadAhead(nextPosition, firstID + urls.size());
+            }
+        }
+
         return true;
     }
 
-    private void deleteAllCachedIDs() {
-        while (true) {
-            Integer id = getFirstId();
-            if (id == null) {
+    /**
+     * adds urls to loaded ones starting from given index. Should be called under lock.
+     */
+    private void addLoadedURLs(List<String> urls, int from) {
+        for (int i = from; i < urls.size(); i++) {
+            final String url = urls.get(i);
+            mLoadedURLs.addLast(url == null ? LOST_URL : url);
+        }
+    }
+
+    /**
+     * starts reading of the next group of urls in background. Should be called under lock.
+     *
+     * @param position journal position of firstID
+     */
+    private void startReadAhead(final long position, int firstID) {
+        final int count = (int) Math.min(mReadGroupSize, mLatestSavedURLID - firstID + 1);
+        if (position < 0 || count <= 0 || mReadAhead != null) {
+            return;
+        }
+
+        mReadAheadFirstID = firstID;
+        mReadAhead = getBackgroundExecutor().submit(new Callable<ReadGroup>() {
+            @Override
+            public ReadGroup call() throws Exception {
+                List<String> urls = new ArrayList<>(count);
+                final long nextPosition = mJournal.read(position, count, urls, new ArrayList<Long>(count));
+                return new ReadGroup(urls, nextPosition);
+            }
+        });
+    }
+
+    /**
+     * waits till next group is read and makes it current one, reading of the group after it is
+     * started at once. Urls that were removed during reading are skipped.
+     */
+    private void useReadAhead(Future<ReadGroup> readAhead, int firstID) {
+        ReadGroup group = null;
+        try {
+            group = readAhead.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            WebtrekkLogging.log("cannot read ahead requests from journal '" + mJournal.getDirectory().getAbsolutePath() + "'", e.getCause());
+        }
+
+        synchronized (mLock) {
+            if (readAhead != mReadAhead) {
+                // queue was reset during reading
                 return;
             }
+            mReadAhead = null;
 
-            String url = mURLCache.get(id);
-            if (url == null) {
-                url = mLoadedIDs.get(id);
-                if (url == null) {
-                    removeKey(id);
+            final int skip = mFirstID - firstID;
+            if (group == null || !mLoadedURLs.isEmpty() || skip < 0 || skip >= group.mURLs.size()) {
+                // urls are loaded synchronously
+                return;
+            }
+
+            addLoadedURLs(group.mURLs, skip);
+            startReadAhead(group.mNextPosition, firstID + group.mURLs.size());
+        }
+    }
+
+    private void cancelReadAhead() {
+        if (mReadAhead != null) {
+            mReadAhead.cancel(false);
+            mReadAhead = null;
+        }
+    }
+
+    private ThreadPoolExecutor getBackgroundExecutor() {
+        if (mBackgroundExecutor == null) {
+            // thread is stopped if there is nothing to do
+            mBackgroundExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
                 }
-            } else {
-                break;
+            });
+            mBackgroundExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mBackgroundExecutor;
+    }
+
+    /**
+     * group of urls that is read from journal
+     */
+    private static class ReadGroup {
+        final private List<String> mURLs;
+        // journal position after the last url
+        final private long mNextPosition;
+
+        ReadGroup(List<String> urls, long nextPosition) {
+            mURLs = urls;
+            mNextPosition = nextPosition;
+        }
+    }
+
+    /**
+     * removes IDs from the head of the queue which urls can't be loaded
+     */
+    private void deleteAllCachedIDs() {
+        synchronized (mLock) {
+            while (queueSize() > 0 && mURLCache.get(mFirstID) == null && mLoadedURLs.isEmpty()) {
+                removeFirst();
             }
         }
     }
 
     /**
-     * this method removes the old cache file, it should be called after the requests are loaded into the store
+     * this method removes the journal files, it should be called after all requests are sent
      */
+    @Override
     public void deleteRequestsFile() {
         WebtrekkLogging.log("deleting old backup file");
-        if (!isURLFileExists()) {
+        if (!waitForOpen() || !isURLFileExists()) {
             return;
         }
 
-        if (size() != 0) {
+        if (queueSize() != 0) {
             WebtrekkLogging.log("still items to send. Error delete URL request File");
             return;
         }
 
-        boolean success = mRequestStoreFile.delete();
-        if (success) {
-            WebtrekkLogging.log("old backup file deleted");
-        } else {
-            WebtrekkLogging.log("error deleting old backup file");
-        }
-
-        writeFileAttributes();
+        mJournal.clear();
+        WebtrekkLogging.log("old backup file deleted");
     }
 
     /**
@@ -435,6 +1147,7 @@ public class RequestUrlStore {
      * @return
      */
     public File getRequestStoreFile() {
-        return mRequestStoreFile;
+        waitForOpen();
+        return mJournal.getTailFile();
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.util.Random;
+
+/**
+ * decides when requests are sent again after server or network failure. Delay grows exponentially
+ * with every failed attempt up to maximum and is randomized from zero to this value (full jitter),
+ * so devices don't retry at the same moment after backend incident.
+ *
+ * After several failures in a row circuit is opened and nothing is sent for longer time. Then one
+ * attempt is allowed (half open state), circuit is closed if it succeeds and opened again otherwise.
+ */
+public class RetryScheduler {
+
+    public static final long DEFAULT_BASE_DELAY = 30 * 1000;  // 30 seconds
+    public static final long DEFAULT_MAX_DELAY = 60 * 60 * 1000;  // 1 hour
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION = 2 * 60 * 60 * 1000;  // 2 hours
+
+    /**
+     * source of time, can be replaced in tests
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public enum State {
+        // requests are sent, delay is applied after failure
+        CLOSED,
+        // requests aren't sent till open duration is over
+        OPEN,
+        // one attempt is allowed after open duration
+        HALF_OPEN
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int mFailureThreshold;
+    private final long mOpenDuration;
+    private final Clock mClock;
+    private final Random mRandom;
+
+    private State mState = State.CLOSED;
+    private int mFailures;
+    // time when next attempt is allowed
+    private long mNextAttemptTime;
+    private long mRetryCount;
+    private long mOpenCount;
+
+    public RetryScheduler() {
+        this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, SYSTEM_CLOCK, new Random());
+    }
+
+    /**
+     * @param baseDelay delay after first failure in milliseconds
+     * @param maxDelay maximum delay in milliseconds
+     * @param failureThreshold number of failures in a row after which circuit is opened
+     * @param openDuration time in milliseconds when circuit is opened, actual time is randomized from half of it
+     */
+    public RetryScheduler(long baseDelay, long maxDelay, int failureThreshold, long openDuration, Clock clock, Random random) {
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mFailureThreshold = failureThreshold;
+        mOpenDuration = openDuration;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * @return true if requests can be sent now. Open circuit becomes half open after open duration.
+     */
+    public synchronized boolean canSend() {
+        return canSend(false);
+    }
+
+    /**
+     * @param explicit true if application sends requests itself. Such send isn't delayed, if circuit
+     *                 is open it is used as half open attempt.
+     * @return true if requests can be sent now
+     */
+    public synchronized boolean canSend(boolean explicit) {
+        if (!explicit && mClock.currentTimeMillis() < mNextAttemptTime) {
+            return false;
+        }
+        if (mState == State.OPEN) {
+            mState = State.HALF_OPEN;
+            WebtrekkLogging.log("retry circuit is half open, trying to send");
+        }
+        if (mFailures > 0) {
+            mRetryCount++;
+        }
+        return true;
+    }
+
+    /**
+     * @return milliseconds till next attempt, 0 if requests can be sent now
+     */
+    public synchronized long getDelay() {
+        return Math.max(0, mNextAttemptTime - mClock.currentTimeMillis());
+    }
+
+    /**
+     * is called when server accepted request, resets delay and closes circuit
+     */
+    public synchronized void onSuccess() {
+        if (mState != State.CLOSED) {
+            WebtrekkLogging.log("retry circuit is closed");
+        }
+        mState = State.CLOSED;
+        mFailures = 0;
+        mNextAttemptTime = 0;
+    }
+
+    /**
+     * is called when request should be retried later because of server or network error
+     *
+     * @return milliseconds till next attempt
+     */
+    public synchronized long onFailure() {
+        mFailures++;
+
+        final long delay;
+        if (mState == State.HALF_OPEN || mFailures >= mFailureThreshold) {
+            mState = State.OPEN;
+            mOpenCount++;
+            delay = mOpenDuration / 2 + nextLong(mOpenDuration / 2);
+            WebtrekkLogging.log("retry circuit is opened after " + mFailures + " failures for " + delay + " ms");
+        } else {
+            // base * 2 ^ (failures - 1), shift is limited to avoid overflow
+            final long ceiling = Math.min(mMaxDelay, mBaseDelay << Math.min(mFailures - 1, 30));
+            delay = nextLong(ceiling);
+            WebtrekkLogging.log("request will be retried in " + delay + " ms, failures: " + mFailures);
+        }
+
+        mNextAttemptTime = mClock.currentTimeMillis() + delay;
+        return delay;
+    }
+
+    /**
+     * @return random value from 0 to max inclusive
+     */
+    private long nextLong(long max) {
+        return max <= 0 ? 0 : (long) (mRandom.nextDouble() * (max + 1));
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return number of failed attempts in a row
+     */
+    public synchronized int getFailureCount() {
+        return mFailures;
+    }
+
+    /**
+     * @return number of attempts after failure
+     */
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return how many times circuit was opened
+     */
+    public synchronized long getOpenCount() {
+        return mOpenCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "state: " + mState + " failures: " + mFailures + " retries: " + mRetryCount + " opened: " + mOpenCount;
+    }
+}
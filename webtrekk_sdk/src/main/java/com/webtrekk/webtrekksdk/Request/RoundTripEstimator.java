@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * estimates round trip time of tracking requests per connection type the same way as TCP does it
+ * (RFC 6298): smoothed round trip time and its variance are updated with every response and
+ * timeout of next requests is SRTT + 4 * RTTVAR within floor and ceiling. So request on dead
+ * network fails after few seconds instead of a minute if this network answered fast before.
+ *
+ * Like TCP retransmission timer timeout is doubled after every request that timed out (until
+ * ceiling) and reset by next response, timed out requests aren't used as samples.
+ * Values aren't persisted, estimation starts from initial timeout after application start.
+ *
+ * Samples are taken from single GET requests only, from connected and validated connection till
+ * response code. Batch POST isn't sampled, its body can still be in socket buffer when write
+ * returns, so upload time can't be separated from round trip. Batches use the same timeout.
+ */
+public class RoundTripEstimator {
+
+    public static final int MIN_TIMEOUT = 5 * 1000;  // 5 seconds
+    public static final int MAX_TIMEOUT = RequestProcessor.NETWORK_CONNECTION_TIMEOUT;
+    // timeout before first response of connection type
+    public static final int INITIAL_TIMEOUT = 15 * 1000;  // 15 seconds
+    // lower bound of variance term, so timeout isn't too tight for very stable network
+    private static final long CLOCK_GRANULARITY = 100;
+    private static final int MAX_BACKOFF = 16;
+
+    private final Map<String, Estimate> mEstimates = new TreeMap<>();
+
+    /**
+     * estimation of one connection type, all values are in milliseconds
+     */
+    public static class Estimate {
+        private long mSmoothedRtt;
+        private long mRttVariance;
+        private long mSamples;
+        private long mTimeouts;
+        // timeout multiplier, is doubled after timeout
+        private int mBackoff = 1;
+
+        /**
+         * @return smoothed round trip time, 0 if there is no sample yet
+         */
+        public long getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+
+        /**
+         * @return smoothed mean deviation of round trip time
+         */
+        public long getRttVariance() {
+            return mRttVariance;
+        }
+
+        /**
+         * @return number of responses that are used for estimation
+         */
+        public long getSampleCount() {
+            return mSamples;
+        }
+
+        /**
+         * @return number of requests that timed out
+         */
+        public long getTimeoutCount() {
+            return mTimeouts;
+        }
+
+        /**
+         * @return connect and read timeout of next request
+         */
+        public int getTimeout() {
+            long timeout = mSamples == 0 ? INITIAL_TIMEOUT
+                    : mSmoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * mRttVariance);
+            timeout = Math.max(MIN_TIMEOUT, timeout);
+            return (int) Math.min(MAX_TIMEOUT, timeout * mBackoff);
+        }
+
+        private Estimate copy() {
+            final Estimate copy = new Estimate();
+            copy.mSmoothedRtt = mSmoothedRtt;
+            copy.mRttVariance = mRttVariance;
+            copy.mSamples = mSamples;
+            copy.mTimeouts = mTimeouts;
+            copy.mBackoff = mBackoff;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "srtt: " + mSmoothedRtt + " ms rttvar: " + mRttVariance + " ms timeout: " + getTimeout()
+                    + " ms samples: " + mSamples + " timeouts: " + mTimeouts;
+        }
+    }
+
+    /**
+     * @param connectionType type of connection, e.g. "WIFI" or "4G"
+     * @param rtt time from sending request on established connection till response code in milliseconds
+     */
+    public void onResponse(String connectionType, long rtt) {
+        synchronized (mEstimates) {
+            final Estimate estimate = getOrCreate(connectionType);
+            if (estimate.mSamples == 0) {
+                estimate.mSmoothedRtt = rtt;
+                estimate.mRttVariance = rtt / 2;
+            } else {
+                estimate.mRttVariance = (3 * estimate.mRttVariance + Math.abs(estimate.mSmoothedRtt - rtt)) / 4;
+                estimate.mSmoothedRtt = (7 * estimate.mSmoothedRtt + rtt) / 8;
+            }
+            estimate.mSamples++;
+            estimate.mBackoff = 1;
+        }
+    }
+
+    /**
+     * is called on response that isn't used as sample, timeout after previous timeouts is reset
+     */
+    public void resetBackoff(String connectionType) {
+        synchronized (mEstimates) {
+            final Estimate estimate = mEstimates.get(connectionType);
+            if (estimate != null) {
+                estimate.mBackoff = 1;
+            }
+        }
+    }
+
+    /**
+     * is called if connect or read of request timed out
+     */
+    public void onTimeout(String connectionType) {
+        synchronized (mEstimates) {
+            final Estimate estimate = getOrCreate(connectionType);
+            estimate.mTimeouts++;
+            if (estimate.mBackoff < MAX_BACKOFF) {
+                estimate.mBackoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * @return connect and read timeout for next request over this connection type in milliseconds
+     */
+    public int getTimeout(String connectionType) {
+        synchronized (mEstimates) {
+            final Estimate estimate = mEstimates.get(connectionType);
+            return estimate == null ? INITIAL_TIMEOUT : estimate.getTimeout();
+        }
+    }
+
+    /**
+     * @param connectionType type of connection, e.g. "WIFI" or "4G"
+     * @return copy of estimation or null if nothing is sent over this connection type
+     */
+    public Estimate getEstimate(String connectionType) {
+        synchronized (mEstimates) {
+            final Estimate estimate = mEstimates.get(connectionType);
+            return estimate == null ? null : estimate.copy();
+        }
+    }
+
+    private Estimate getOrCreate(String connectionType) {
+        Estimate estimate = mEstimates.get(connectionType);
+        if (estimate == null) {
+            estimate = new Estimate();
+            mEstimates.put(connectionType, estimate);
+        }
+        return estimate;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mEstimates) {
+            return mEstimates.toString();
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * keeps every request url as a row of SQLite table. Row is inserted when url is added and deleted
+ * when url is sent, so nothing is kept in memory except of group of urls that are being sent.
+ */
+public class SQLiteRequestStorage implements RequestStorage {
+
+    static final String DATABASE_NAME = "wt-tracking-requests.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "requests";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_URL = "url";
+    private static final String COLUMN_TYPE = "type";
+    private static final long NO_PEEKED_ID = -1;
+    private static final long PEEKED_ID_DROPPED = -2;
+
+    final private SQLiteOpenHelper mHelper;
+    final private int mMaxRequests;
+    final private RequestUrlStore.OverflowPolicy mOverflowPolicy;
+    final private RequestQueueMetrics mMetrics = new RequestQueueMetrics();
+    final int mReadGroupSize = 200;
+    // rows loaded from the head of table
+    final private ArrayDeque<Long> mLoadedIDs = new ArrayDeque<>(mReadGroupSize);
+    final private ArrayDeque<String> mLoadedURLs = new ArrayDeque<>(mReadGroupSize);
+    final private ArrayDeque<TrackingRequest.RequestType> mLoadedTypes = new ArrayDeque<>(mReadGroupSize);
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mDeleteStatement;
+    private int mSize = -1;
+    // row ID that is returned by latest peek and is being sent now
+    private long mPeekedID = NO_PEEKED_ID;
+    // number of rows of batch that is returned by latest peek(int) and is being sent now
+    private int mPeekedCount;
+    // number of rows of batch that are already dropped by overflow policy
+    private int mPeekedDroppedCount;
+
+    /**
+     * @param context the application/activity context
+     * @param maxRequests maximum number of requests in queue
+     * @param overflowPolicy defines which request is dropped if queue is full
+     */
+    public SQLiteRequestStorage(Context context, int maxRequests, RequestUrlStore.OverflowPolicy overflowPolicy) {
+        this(context, maxRequests, overflowPolicy, null);
+    }
+
+    /**
+     * @param laneName name of lane of {@link LaneRequestStorage}, lane has own database file.
+     *                 Null for main lane that uses database of previous versions.
+     */
+    SQLiteRequestStorage(Context context, int maxRequests, RequestUrlStore.OverflowPolicy overflowPolicy, String laneName) {
+        if (context == null) {
+            throw new IllegalArgumentException("no valid context");
+        }
+
+        mMaxRequests = maxRequests;
+        mOverflowPolicy = overflowPolicy;
+        final String databaseName = laneName == null ? DATABASE_NAME : DATABASE_NAME.replace(".db", "-" + laneName + ".db");
+        mHelper = new SQLiteOpenHelper(context, databaseName, null, DATABASE_VERSION) {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE " + TABLE + " (" + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + COLUMN_URL + " TEXT NOT NULL, " + COLUMN_TYPE + " INTEGER NOT NULL)");
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                // there is only one version
+            }
+        };
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // appends don't wait for readers and are written sequentially
+            mHelper.setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    private SQLiteDatabase getDatabase() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (mSize < 0) {
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+            try {
+                mSize = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
+            mInsertStatement = db.compileStatement("INSERT INTO " + TABLE + " (" + COLUMN_URL + ", " + COLUMN_TYPE + ") VALUES (?, ?)");
+            mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE + " WHERE " + COLUMN_ID + " = ?");
+            WebtrekkLogging.log("request database opened. Size: " + mSize);
+        }
+        return db;
+    }
+
+    @Override
+    public void addURL(String requestUrl) {
+        addURL(requestUrl, TrackingRequest.RequestType.GENERAL);
+    }
+
+    @Override
+    public synchronized void addURL(String requestUrl, TrackingRequest.RequestType type) {
+        try {
+            getDatabase();
+
+            while (mSize >= mMaxRequests) {
+                if (!loadHead()) {
+                    break;
+                }
+
+                final TrackingRequest.RequestType headType = mLoadedTypes.peekFirst();
+                if (mOverflowPolicy == RequestUrlStore.OverflowPolicy.DROP_NEWEST
+                        || (mOverflowPolicy == RequestUrlStore.OverflowPolicy.DROP_LOWEST_PRIORITY && headType.getPriority() > type.getPriority())) {
+                    WebtrekkLogging.log("request queue is full, new request is dropped. Max requests: " + mMaxRequests);
+                    mMetrics.onDropped(type);
+                    return;
+                }
+
+                if (mLoadedIDs.peekFirst() == mPeekedID) {
+                    // request is being sent now, so sender shouldn't remove next one after it is done
+                    mPeekedID = PEEKED_ID_DROPPED;
+                }
+                if (mPeekedCount > 0) {
+                    mPeekedCount--;
+                    mPeekedDroppedCount++;
+                }
+                removeFirst();
+                mMetrics.onDropped(headType);
+            }
+
+            mInsertStatement.bindString(1, requestUrl);
+            mInsertStatement.bindLong(2, type.ordinal());
+            mInsertStatement.executeInsert();
+            mSize++;
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't save request to database", e);
+        }
+    }
+
+    @Override
+    public synchronized String peek() {
+        try {
+            if (!loadHead()) {
+                return null;
+            }
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't load requests from database", e);
+            return null;
+        }
+
+        mPeekedID = mLoadedIDs.peekFirst();
+        return mLoadedURLs.peekFirst();
+    }
+
+    /**
+     * batch is limited by rows that are loaded already, so at most one group is sent at once
+     */
+    @Override
+    public synchronized List<String> peek(int maxCount) {
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+        try {
+            if (!loadHead()) {
+                return new ArrayList<>();
+            }
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't load requests from database", e);
+            return new ArrayList<>();
+        }
+
+        final List<String> urls = new ArrayList<>(Math.min(maxCount, mLoadedURLs.size()));
+        for (String url : mLoadedURLs) {
+            if (urls.size() >= maxCount) {
+                break;
+            }
+            urls.add(url);
+        }
+        mPeekedCount = urls.size();
+        return urls;
+    }
+
+    @Override
+    public synchronized void removeLastURLs(int count) {
+        // dropped rows are always at the beginning of batch
+        final int removeCount = Math.min(count - mPeekedDroppedCount, mPeekedCount);
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+        if (removeCount <= 0) {
+            return;
+        }
+
+        final SQLiteDatabase db;
+        try {
+            db = getDatabase();
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't remove requests from database", e);
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < removeCount && !mLoadedIDs.isEmpty(); i++) {
+                removeFirst();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't remove requests from database", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * sent rows are deleted by ID, so not sent row in between stays in table
+     */
+    @Override
+    public synchronized void removeLastURLs(boolean[] sent) {
+        // dropped rows are always at the beginning of batch
+        final int first = mPeekedDroppedCount;
+        final int end = Math.min(sent.length, mPeekedDroppedCount + mPeekedCount);
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+        if (first >= end) {
+            return;
+        }
+
+        final SQLiteDatabase db;
+        try {
+            db = getDatabase();
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't remove requests from database", e);
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            final Iterator<Long> ids = mLoadedIDs.iterator();
+            final Iterator<String> urls = mLoadedURLs.iterator();
+            final Iterator<TrackingRequest.RequestType> types = mLoadedTypes.iterator();
+            for (int i = first; i < end && ids.hasNext(); i++) {
+                final long id = ids.next();
+                urls.next();
+                types.next();
+                if (sent[i]) {
+                    mDeleteStatement.bindLong(1, id);
+                    mDeleteStatement.executeUpdateDelete();
+                    ids.remove();
+                    urls.remove();
+                    types.remove();
+                    mSize--;
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't remove requests from database", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * loads group of rows from the head of table if nothing is loaded
+     *
+     * @return false if table is empty
+     */
+    private boolean loadHead() {
+        if (!mLoadedIDs.isEmpty()) {
+            return true;
+        }
+
+        final TrackingRequest.RequestType[] types = TrackingRequest.RequestType.values();
+        Cursor cursor = getDatabase().query(TABLE, new String[]{COLUMN_ID, COLUMN_URL, COLUMN_TYPE},
+                null, null, null, null, COLUMN_ID, String.valueOf(mReadGroupSize));
+        try {
+            while (cursor.moveToNext()) {
+                final int type = cursor.getInt(2);
+                mLoadedIDs.addLast(cursor.getLong(0));
+                mLoadedURLs.addLast(cursor.getString(1));
+                mLoadedTypes.addLast(type >= 0 && type < types.length ? types[type] : TrackingRequest.RequestType.GENERAL);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return !mLoadedIDs.isEmpty();
+    }
+
+    @Override
+    public synchronized void removeLastURL() {
+        if (mPeekedID == PEEKED_ID_DROPPED) {
+            // peeked url is already dropped by overflow policy
+            mPeekedID = NO_PEEKED_ID;
+            return;
+        }
+
+        mPeekedID = NO_PEEKED_ID;
+        try {
+            if (loadHead()) {
+                removeFirst();
+            }
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't remove request from database", e);
+        }
+    }
+
+    /**
+     * deletes first loaded row. Should be called under lock.
+     */
+    private void removeFirst() {
+        mDeleteStatement.bindLong(1, mLoadedIDs.pollFirst());
+        mDeleteStatement.executeUpdateDelete();
+        mLoadedURLs.pollFirst();
+        mLoadedTypes.pollFirst();
+        mSize--;
+    }
+
+    @Override
+    public synchronized int size() {
+        try {
+            getDatabase();
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't open request database", e);
+            return 0;
+        }
+        return mSize;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        // every url is saved at once
+    }
+
+    @Override
+    public void reset() {
+        // nothing to reset, row IDs are assigned by database
+    }
+
+    @Override
+    public synchronized void clearAllTrackingData() {
+        try {
+            getDatabase().delete(TABLE, null, null);
+            mSize = 0;
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't clear request database", e);
+        }
+        mLoadedIDs.clear();
+        mLoadedURLs.clear();
+        mLoadedTypes.clear();
+        mPeekedID = NO_PEEKED_ID;
+        mPeekedCount = 0;
+        mPeekedDroppedCount = 0;
+    }
+
+    @Override
+    public void deleteRequestsFile() {
+        // database file is kept, empty table takes almost no space
+    }
+
+    @Override
+    public RequestQueueMetrics getMetrics() {
+        return mMetrics;
+    }
+}
@@ -31,6 +31,9 @@ import com.webtrekk.webtrekksdk.Webtrekk;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.SortedMap;
 
@@ -53,10 +56,23 @@ public class TrackingRequest {
 
     public enum RequestType
     {
-        GENERAL,
-        CDB,
-        INSTALL,
-        ECXEPTION
+        GENERAL(1),
+        CDB(2),
+        INSTALL(3),
+        ECXEPTION(0),
+        // crash report of previous run, is sent before general requests, see {@link LaneRequestStorage}
+        FATAL_EXCEPTION(2);
+
+        // is used to select request that is dropped if request queue is full. Higher is more important.
+        private final int mPriority;
+
+        RequestType(int priority) {
+            mPriority = priority;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
     }
 
     /**
@@ -255,6 +271,10 @@ public class TrackingRequest {
         void getMergedTrackingPart(TrackingParameter trackingParameter, StringBuffer url);
     }
 
+    public RequestType getRequestType() {
+        return mRequestType;
+    }
+
     public void setMergedRequest( RequestType type){
         mMergedRequestType = type;
     }
@@ -554,6 +574,7 @@ public class TrackingRequest {
             case INSTALL:
                 return new InstallRequest();
             case ECXEPTION:
+            case FATAL_EXCEPTION:
                 return new ExceptionRequest();
             default:
                 return null;
@@ -605,4 +626,28 @@ public class TrackingRequest {
         TrackingParameter parameter = TrackingParameter.createFromJson(parameterJson);
         return new TrackingRequest(parameter, trackingConfiguration, RequestType.values()[type]);
     }
+
+    /**
+     * serializes request type and parameters to compact binary form
+     */
+    byte[] saveToBinary() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        out.write(mRequestType.ordinal());
+        mTrackingParameter.saveToBinary(out);
+        return out.toByteArray();
+    }
+
+    @NonNull
+    static public TrackingRequest createFromBinary(@NonNull ByteBuffer buffer,
+              @NonNull TrackingConfiguration trackingConfiguration) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("tracking request is empty");
+        }
+        final int type = buffer.get();
+        if (type < 0 || type >= RequestType.values().length) {
+            throw new IOException("unknown tracking request type: " + type);
+        }
+        TrackingParameter parameter = TrackingParameter.createFromBinary(buffer);
+        return new TrackingRequest(parameter, trackingConfiguration, RequestType.values()[type]);
+    }
 }
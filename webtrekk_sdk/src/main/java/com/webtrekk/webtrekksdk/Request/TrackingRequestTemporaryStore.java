@@ -28,82 +28,280 @@ import com.webtrekk.webtrekksdk.Webtrekk;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
+/**
+ * keeps tracking requests that are created before campaign processing is finished. Requests are
+ * saved in binary form and are read back one by one, so only one request is in memory at once.
+ * Record is [byte BINARY_RECORD][int length][request]. Files of previous SDK versions have JSON
+ * line per request, such records start with '{' and are read as JSON.
+ * Read position is saved while requests are read, so requests aren't sent twice if process is
+ * killed during reading.
+ */
 class TrackingRequestTemporaryStore {
     final static private String FILE_NAME = "wt-pending-requests.json";
+    // byte offset of the first not read request
+    final static private String OFFSET_FILE_NAME = "wt-pending-requests.offset";
+    // new requests are dropped if file is bigger
+    final static int MAX_FILE_SIZE = 1024 * 1024;
+    // read offset is saved after this number of requests
+    final static private int OFFSET_SAVE_INTERVAL = 32;
+    // first byte of binary record, JSON records start with '{'
+    final static private int BINARY_RECORD = 1;
+    final static private Charset UTF_8 = Charset.forName("UTF-8");
     final File mStoreFile;
+    final File mOffsetFile;
     final TrackingConfiguration mConfiguration;
 
 
     TrackingRequestTemporaryStore(@NonNull Context context,
                                   @NonNull TrackingConfiguration trackingConfiguration){
         mStoreFile = new File(context.getFilesDir(), FILE_NAME);
+        mOffsetFile = new File(context.getFilesDir(), OFFSET_FILE_NAME);
         mConfiguration = trackingConfiguration;
     }
 
     void saveTrackingRequest(@NonNull TrackingRequest request){
-        PrintWriter writer = null;
+        if (mStoreFile.length() >= MAX_FILE_SIZE) {
+            WebtrekkLogging.log("pending tracking requests store is full, request is dropped");
+            return;
+        }
+
+        final byte[] record = request.saveToBinary();
+        DataOutputStream out = null;
         try {
-            JSONObject jsonObject = request.saveToJson();
-            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(mStoreFile, true), "UTF-8")));
-            writer.println(jsonObject.toString());
-        } catch (JSONException e) {
-            WebtrekkLogging.log("can't save pending tracking request:" + e.getLocalizedMessage());
-        } catch (FileNotFoundException e) {
-            WebtrekkLogging.log("can't save pending tracking request:" + e.getLocalizedMessage());
-        } catch (UnsupportedEncodingException e) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mStoreFile, true)));
+            out.write(BINARY_RECORD);
+            out.writeInt(record.length);
+            out.write(record);
+        } catch (IOException e) {
             WebtrekkLogging.log("can't save pending tracking request:" + e.getLocalizedMessage());
         } finally {
-            if (writer != null){
-                writer.close();
-            }
+            closeQuietly(out);
         }
     }
 
+    /**
+     * opens reader of saved requests. Reader should be closed after reading, store is deleted
+     * if all requests are read.
+     */
     @NonNull
-    List<TrackingRequest> getAllSavedRequests(){
-        BufferedReader reader = null;
-        List<TrackingRequest> list = new ArrayList<>();
-
-        try {
-            reader = new BufferedReader(new InputStreamReader(
-                    new FileInputStream(mStoreFile),"UTF-8"));
-            String line;
-            while ((line = reader.readLine()) != null){
-                JSONObject jsonObject = new JSONObject(line);
-                list.add(TrackingRequest.createFromJson(jsonObject, mConfiguration));
-            }
-        } catch (UnsupportedEncodingException e) {
-            WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
-        } catch (FileNotFoundException e) {
-            WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
-        } catch (IOException e) {
-            WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
-        } catch (JSONException e) {
-            WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
-        }
-        return list;
+    Reader openReader(){
+        return new Reader();
     }
 
     void deleteQueue(){
         mStoreFile.delete();
+        mOffsetFile.delete();
     }
 
     boolean queueIsEmpty(){
         return !mStoreFile.exists();
     }
+
+    private long readOffset(){
+        if (!mOffsetFile.exists()){
+            return 0;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mOffsetFile));
+            return in.readLong();
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't read pending tracking requests offset:" + e.getLocalizedMessage());
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void saveOffset(long offset){
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(mOffsetFile));
+            out.writeLong(offset);
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't save pending tracking requests offset:" + e.getLocalizedMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        if (closeable != null){
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't close pending tracking requests file:" + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * reads saved requests one by one starting from saved offset
+     */
+    class Reader implements Closeable {
+        private InputStream mInput;
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(1024);
+        private long mOffset;
+        private int mNotSavedCount;
+        private boolean mIsFinished;
+
+        private Reader(){
+            mOffset = readOffset();
+            try {
+                mInput = new BufferedInputStream(new FileInputStream(mStoreFile));
+                if (mInput.skip(mOffset) < mOffset){
+                    mIsFinished = true;
+                }
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
+                mIsFinished = true;
+            }
+        }
+
+        /**
+         * @return next request or null if all requests are read
+         */
+        TrackingRequest next(){
+            while (!mIsFinished){
+                final long recordStart = mOffset;
+                final int marker = read();
+                if (marker < 0){
+                    mIsFinished = true;
+                    break;
+                }
+                if (marker == '\n' || marker == '\r'){
+                    continue;
+                }
+
+                final byte[] record;
+                if (marker == BINARY_RECORD){
+                    record = readBinaryRecord();
+                } else if (marker == '{'){
+                    record = readLine();
+                } else {
+                    WebtrekkLogging.log("unknown pending tracking request format, other requests are dropped");
+                    record = null;
+                }
+                if (record == null){
+                    // last record is written partly
+                    mIsFinished = true;
+                    break;
+                }
+
+                // request that is returned isn't queued yet, so it is read again after process kill
+                if (++mNotSavedCount >= OFFSET_SAVE_INTERVAL){
+                    saveOffset(recordStart);
+                    mNotSavedCount = 0;
+                }
+
+                try {
+                    if (marker == BINARY_RECORD){
+                        return TrackingRequest.createFromBinary(ByteBuffer.wrap(record), mConfiguration);
+                    }
+                    return TrackingRequest.createFromJson(new JSONObject(new String(record, UTF_8)), mConfiguration);
+                } catch (IOException e) {
+                    // broken request is skipped, other requests are still sent
+                    WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
+                } catch (JSONException e) {
+                    WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return next byte or -1 at the end of file
+         */
+        private int read(){
+            try {
+                final int value = mInput.read();
+                if (value >= 0){
+                    mOffset++;
+                }
+                return value;
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
+                return -1;
+            }
+        }
+
+        /**
+         * @return binary request after record marker or null at the end of file
+         */
+        private byte[] readBinaryRecord(){
+            int length = 0;
+            for (int i = 0; i < 4; i++){
+                final int value = read();
+                if (value < 0){
+                    return null;
+                }
+                length = (length << 8) | value;
+            }
+            if (length < 0 || length > MAX_FILE_SIZE){
+                WebtrekkLogging.log("corrupted pending tracking request length: " + length);
+                return null;
+            }
+
+            final byte[] record = new byte[length];
+            int read = 0;
+            try {
+                while (read < length){
+                    final int count = mInput.read(record, read, length - read);
+                    if (count < 0){
+                        return null;
+                    }
+                    read += count;
+                    mOffset += count;
+                }
+            } catch (IOException e) {
+                WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
+                return null;
+            }
+            return record;
+        }
+
+        /**
+         * @return JSON line with '{' that is already read or null at the end of file
+         */
+        private byte[] readLine(){
+            mLine.reset();
+            mLine.write('{');
+            int value;
+            while ((value = read()) >= 0){
+                if (value == '\n'){
+                    return mLine.toByteArray();
+                }
+                mLine.write(value);
+            }
+            return null;
+        }
+
+        /**
+         * deletes store if all requests are read, otherwise saves read offset
+         */
+        @Override
+        public void close(){
+            closeQuietly(mInput);
+            if (mIsFinished){
+                deleteQueue();
+            } else if (mNotSavedCount > 0){
+                saveOffset(mOffset);
+            }
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of url parts that are the same for most of requests: base url with track domain and
+ * track id and static parameters like user agent, ever id, time zone, language or resolution.
+ * Dictionary is built from the first url of journal segment and stored once in segment, records keep
+ * only references to dictionary and not matched parts of url.
+ *
+ * Url is split to tokens before each '?', '&' and ',', so every parameter with its value and every
+ * part of p parameter is one token.
+ * Encoded url is sequence of varints: even value is dictionary index * 2, odd value is
+ * length * 2 + 1 of following UTF-8 literal.
+ */
+class UrlDictionary {
+
+    // shorter tokens aren't worth reference
+    private static final int MIN_TOKEN_LENGTH = 6;
+    private static final int MAX_TOKENS = 64;
+
+    final private List<String> mTokens;
+    final private Map<String, Integer> mIndexes;
+
+    private UrlDictionary(List<String> tokens) {
+        mTokens = tokens;
+        mIndexes = new HashMap<>(tokens.size() * 2);
+        for (int i = 0; i < tokens.size(); i++) {
+            mIndexes.put(tokens.get(i), i);
+        }
+    }
+
+    /**
+     * builds dictionary from all long enough tokens of url
+     */
+    @NonNull
+    static UrlDictionary fromUrl(@NonNull String url) {
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        while (start < url.length() && tokens.size() < MAX_TOKENS) {
+            final int end = nextTokenEnd(url, start);
+            if (end - start >= MIN_TOKEN_LENGTH) {
+                tokens.add(url.substring(start, end));
+            }
+            start = end;
+        }
+        return new UrlDictionary(tokens);
+    }
+
+    private static int nextTokenEnd(String url, int start) {
+        for (int i = start + 1; i < url.length(); i++) {
+            final char c = url.charAt(i);
+            if (c == '&' || c == '?' || c == ',') {
+                return i;
+            }
+        }
+        return url.length();
+    }
+
+    int size() {
+        return mTokens.size();
+    }
+
+    @NonNull
+    byte[] encode(@NonNull String url) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(url.length() / 2);
+        int literalStart = 0;
+        int start = 0;
+
+        while (start < url.length()) {
+            final int end = nextTokenEnd(url, start);
+            Integer index = end - start >= MIN_TOKEN_LENGTH ? mIndexes.get(url.substring(start, end)) : null;
+            if (index != null) {
+                writeLiteral(out, url, literalStart, start);
+                writeVarInt(out, index * 2);
+                literalStart = end;
+            }
+            start = end;
+        }
+        writeLiteral(out, url, literalStart, url.length());
+
+        return out.toByteArray();
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream out, String url, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        final byte[] literal = url.substring(start, end).getBytes(JournalSegment.UTF_8);
+        writeVarInt(out, literal.length * 2 + 1);
+        out.write(literal, 0, literal.length);
+    }
+
+    @NonNull
+    String decode(@NonNull byte[] data, int offset, int length) throws IOException {
+        StringBuilder url = new StringBuilder(length * 2);
+        final int end = offset + length;
+        int position = offset;
+
+        while (position < end) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= end || shift > 28) {
+                    throw new IOException("corrupted dictionary record");
+                }
+                b = data[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if ((value & 1) == 0) {
+                final int index = value >>> 1;
+                if (index >= mTokens.size()) {
+                    throw new IOException("corrupted dictionary record: no token " + index);
+                }
+                url.append(mTokens.get(index));
+            } else {
+                final int literalLength = value >>> 1;
+                if (position + literalLength > end) {
+                    throw new IOException("corrupted dictionary record: literal is too long");
+                }
+                url.append(new String(data, position, literalLength, JournalSegment.UTF_8));
+                position += literalLength;
+            }
+        }
+
+        return url.toString();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * @return dictionary in format [int token count]([int length][UTF-8 token])*
+     */
+    @NonNull
+    byte[] toBytes() {
+        List<byte[]> tokens = new ArrayList<>(mTokens.size());
+        int size = 4;
+        for (String token : mTokens) {
+            final byte[] bytes = token.getBytes(JournalSegment.UTF_8);
+            tokens.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(tokens.size());
+        for (byte[] token : tokens) {
+            buffer.putInt(token.length);
+            buffer.put(token);
+        }
+        return buffer.array();
+    }
+
+    @NonNull
+    static UrlDictionary fromBytes(@NonNull ByteBuffer buffer) throws IOException {
+        final int count = buffer.getInt();
+        if (count < 0 || count > MAX_TOKENS) {
+            throw new IOException("corrupted url dictionary");
+        }
+
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("corrupted url dictionary");
+            }
+            tokens.add(new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, JournalSegment.UTF_8));
+            buffer.position(buffer.position() + length);
+        }
+        return new UrlDictionary(tokens);
+    }
+}
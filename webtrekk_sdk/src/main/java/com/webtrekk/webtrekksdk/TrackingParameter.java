@@ -26,6 +26,11 @@ import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -51,6 +56,13 @@ public class TrackingParameter {
     final private static int MAX_PARAMETER_LENGTH = 255;
     //~8 KB because some parameter don't exist during size validation add 200 symbols, just in case
     final private static int MAX_QUERY_LENGTH = 8*1024 - 200;
+    // version of binary form, should be changed if binary form or order of Parameter values is changed
+    final private static int BINARY_VERSION = 1;
+    // parameter maps except of default parameters, it is their order in binary form as well
+    final private static Parameter[] BINARY_MAPS = {Parameter.PAGE, Parameter.SESSION, Parameter.ECOM,
+            Parameter.USER_CAT, Parameter.AD, Parameter.ACTION, Parameter.PRODUCT_CAT, Parameter.MEDIA_CAT,
+            Parameter.PAGE_CAT, Parameter.CUSTOM_USER_PAR};
+    final private static Charset UTF_8 = Charset.forName("UTF-8");
     // general tracking trackingParameter
     private SortedMap<Parameter, String> defaultParameter;
     // customer trackingparams, defined by the app
@@ -277,7 +289,8 @@ public class TrackingParameter {
     }
 
     /**
-     * this enum contains all valid tracking parameters and their url string identifier
+     * this enum contains all valid tracking parameters and their url string identifier.
+     * Ordinals are saved in binary form of pending requests, so new values are added to the end.
      */
     public enum Parameter {
         /**
@@ -624,16 +637,9 @@ public class TrackingParameter {
     @NonNull
     private Map<String, SortedMap<String, String>> getParMapArrays(){
         Map<String, SortedMap<String, String>> parArrays = new HashMap<>();
-        parArrays.put(Parameter.PAGE.toString(), pageParameter);
-        parArrays.put(Parameter.SESSION.toString(), sessionParameter);
-        parArrays.put(Parameter.ECOM.toString(), ecomParameter);
-        parArrays.put(Parameter.USER_CAT.toString(), userCategories);
-        parArrays.put(Parameter.AD.toString(), adParameter);
-        parArrays.put(Parameter.ACTION.toString(), actionParameter);
-        parArrays.put(Parameter.PRODUCT_CAT.toString(), productCategories);
-        parArrays.put(Parameter.MEDIA_CAT.toString(), mediaCategories);
-        parArrays.put(Parameter.PAGE_CAT.toString(), pageCategories);
-        parArrays.put(Parameter.CUSTOM_USER_PAR.toString(), mCustomUserParameters);
+        for (Parameter parameter: BINARY_MAPS){
+            parArrays.put(parameter.toString(), getParMap(parameter));
+        }
         return  parArrays;
     }
 
@@ -665,4 +671,143 @@ public class TrackingParameter {
 
         return parameter;
     }
+
+    /**
+     * @hide
+     * Serialize this object to compact binary form: version, default parameters with Parameter
+     * ordinals as keys, then other parameters in {@link #BINARY_MAPS} order with string keys.
+     * Counts, ordinals and string lengths are written as varints, strings as UTF-8.
+     * */
+    public void saveToBinary(@NonNull ByteArrayOutputStream out) {
+        out.write(BINARY_VERSION);
+
+        writeVarInt(out, countNotEmpty(defaultParameter));
+        for (Map.Entry<Parameter, String> entry: defaultParameter.entrySet()){
+            final String value = entry.getValue();
+            if (value != null && !value.isEmpty()) {
+                writeVarInt(out, entry.getKey().ordinal());
+                writeString(out, value);
+            }
+        }
+
+        for (Parameter parameter: BINARY_MAPS){
+            final SortedMap<String, String> map = getParMap(parameter);
+            writeVarInt(out, countNotEmpty(map));
+            for (Map.Entry<String, String> entry: map.entrySet()){
+                final String value = entry.getValue();
+                if (value != null && !value.isEmpty()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @hide
+     * Create TrackingParameter object from binary form that is written by {@link #saveToBinary}
+     * */
+    public static TrackingParameter createFromBinary(@NonNull ByteBuffer buffer) throws IOException {
+        try {
+            final int version = buffer.get();
+            if (version != BINARY_VERSION) {
+                throw new IOException("unsupported tracking parameter version: " + version);
+            }
+
+            TrackingParameter parameter = new TrackingParameter();
+            final Parameter[] keys = Parameter.values();
+            int count = readVarInt(buffer);
+            for (int i = 0; i < count; i++) {
+                final int ordinal = readVarInt(buffer);
+                if (ordinal < 0 || ordinal >= keys.length) {
+                    throw new IOException("unknown tracking parameter: " + ordinal);
+                }
+                parameter.add(keys[ordinal], readString(buffer));
+            }
+
+            for (Parameter map: BINARY_MAPS) {
+                count = readVarInt(buffer);
+                for (int i = 0; i < count; i++) {
+                    final String key = readString(buffer);
+                    parameter.add(map, key, readString(buffer));
+                }
+            }
+            return parameter;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("tracking parameter is truncated");
+        }
+    }
+
+    private SortedMap<String, String> getParMap(Parameter parameter) {
+        switch (parameter) {
+            case PAGE:
+                return pageParameter;
+            case SESSION:
+                return sessionParameter;
+            case ECOM:
+                return ecomParameter;
+            case USER_CAT:
+                return userCategories;
+            case AD:
+                return adParameter;
+            case ACTION:
+                return actionParameter;
+            case PRODUCT_CAT:
+                return productCategories;
+            case MEDIA_CAT:
+                return mediaCategories;
+            case PAGE_CAT:
+                return pageCategories;
+            case CUSTOM_USER_PAR:
+                return mCustomUserParameters;
+            default:
+                throw new IllegalArgumentException("invalid TrackingParameter type");
+        }
+    }
+
+    private static int countNotEmpty(Map<?, String> map) {
+        int count = 0;
+        for (String value: map.values()) {
+            if (value != null && !value.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in tracking parameter");
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        final int length = readVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("tracking parameter is truncated");
+        }
+        final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
 }
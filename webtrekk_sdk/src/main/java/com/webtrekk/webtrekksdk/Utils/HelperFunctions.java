@@ -42,6 +42,7 @@ import com.webtrekk.webtrekksdk.Request.RequestProcessor;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -385,6 +386,34 @@ final public class HelperFunctions {
         return context.getSharedPreferences(Webtrekk.PREFERENCE_FILE_NAME, Context.MODE_PRIVATE);
     }
 
+    /**
+     * returns name of the current process, main process of application has package name
+     *
+     * @param context
+     * @return
+     */
+    public static String getProcessName(Context context) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/self/cmdline"), "UTF-8"));
+            try {
+                final String line = reader.readLine();
+                if (line != null) {
+                    // arguments are separated with zero chars
+                    final int end = line.indexOf('\0');
+                    final String name = (end < 0 ? line : line.substring(0, end)).trim();
+                    if (!name.isEmpty()) {
+                        return name;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't read process name", e);
+        }
+        return context.getPackageName();
+    }
+
     /**
      * this is true when its a system app or was preinstalled on the phone
      *
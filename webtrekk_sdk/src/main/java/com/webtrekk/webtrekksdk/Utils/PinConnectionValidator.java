@@ -7,6 +7,7 @@ import android.support.annotation.Nullable;
 import android.util.Base64;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -15,7 +16,10 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -27,14 +31,53 @@ import javax.net.ssl.X509TrustManager;
 
 public class PinConnectionValidator {
 
+    // validated chain is trusted for this time without new check, so removed CA or pin changes
+    // are picked up at latest after it
+    private static final long VALIDATION_CACHE_TIME = 60 * 60 * 1000;
+    private static final int MAX_VALIDATED_HOSTS = 16;
+
     @Nullable
     private final Set<String> validPins;
 
+    // decoded valid pins, so digest of public key is compared without base64 encoding
+    private final Set<ByteBuffer> pinDigests = new HashSet<>();
+
+    // last chain that passed validation per host
+    private final Map<String, ValidatedChain> validatedChains = new HashMap<>();
+
+    // connections are validated from several sender threads, so each has own digest
+    private final ThreadLocal<MessageDigest> digest = new ThreadLocal<>();
+
+    private final TrustChecker trustChecker;
+
     public PinConnectionValidator(@Nullable Set<String> validPins) {
         this.validPins = validPins;
+        this.trustChecker = getTrustChecker();
+        initPinDigests();
+    }
+
+    /**
+     * for unit testing only
+     */
+    PinConnectionValidator(@Nullable Set<String> validPins, @NonNull TrustChecker trustChecker) {
+        this.validPins = validPins;
+        this.trustChecker = trustChecker;
+        initPinDigests();
     }
 
-    private TrustChecker trustChecker = getTrustChecker();
+    private void initPinDigests() {
+        if (validPins == null) {
+            return;
+        }
+
+        for (String pin : validPins) {
+            try {
+                pinDigests.add(ByteBuffer.wrap(Base64.decode(pin, Base64.NO_WRAP)));
+            } catch (IllegalArgumentException e) {
+                WebtrekkLogging.log("PinConnectionValidator: Warning - pin isn't valid base64 and is ignored: " + pin);
+            }
+        }
+    }
 
     public void validatePinning(@NonNull HttpsURLConnection conn) throws SSLException {
 
@@ -44,37 +87,91 @@ public class PinConnectionValidator {
             return;
         }
 
-        StringBuilder certChainMsg = new StringBuilder();
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            List<X509Certificate> trustedChain = trustedChain(conn);
-            for (Certificate cert : trustedChain) {
-                byte[] publicKey = cert.getPublicKey().getEncoded();
-                md.update(publicKey, 0, publicKey.length);
-                String pin = Base64.encodeToString(md.digest(), Base64.NO_WRAP);
-                certChainMsg.append("    sha256/")
-                        .append(pin).append(" : ")
-                        .append(cert.getPublicKey().toString())
-                        .append("\n");
-                if (validPins.contains(pin)) {
-                    return;
-                }
+        Certificate[] serverCerts = conn.getServerCertificates();
+        String host = conn.getURL().getHost();
+
+        // connection that is kept alive or resumes session returns same chain, it is checked already
+        if (isValidated(host, serverCerts)) {
+            return;
+        }
+
+        List<X509Certificate> trustedChain = trustedChain(serverCerts, host);
+        MessageDigest md = getDigest();
+        for (Certificate cert : trustedChain) {
+            if (pinDigests.contains(ByteBuffer.wrap(md.digest(cert.getPublicKey().getEncoded())))) {
+                setValidated(host, serverCerts, trustedChain);
+                return;
             }
-        } catch (NoSuchAlgorithmException e) {
-            throw new SSLException(e);
         }
+
         throw new SSLPeerUnverifiedException("Certificate pinning " +
-                "failure\n  Peer certificate chain:\n" + certChainMsg);
+                "failure\n  Peer certificate chain:\n" + getChainMessage(trustedChain, md));
+    }
+
+    private boolean isValidated(@NonNull String host, @NonNull Certificate[] serverCerts) {
+        synchronized (validatedChains) {
+            ValidatedChain validated = validatedChains.get(host);
+            // certificates are compared by reference first, so same session costs nothing
+            return validated != null && currentTimeMillis() < validated.expires
+                    && Arrays.equals(validated.certs, serverCerts);
+        }
+    }
+
+    private void setValidated(@NonNull String host, @NonNull Certificate[] serverCerts,
+                              @NonNull List<X509Certificate> trustedChain) {
+        long expires = currentTimeMillis() + VALIDATION_CACHE_TIME;
+        for (X509Certificate cert : trustedChain) {
+            expires = Math.min(expires, cert.getNotAfter().getTime());
+        }
+
+        synchronized (validatedChains) {
+            if (validatedChains.size() >= MAX_VALIDATED_HOSTS && !validatedChains.containsKey(host)) {
+                validatedChains.clear();
+            }
+            validatedChains.put(host, new ValidatedChain(serverCerts.clone(), expires));
+        }
+    }
+
+    /**
+     * source of time for cached validation, is overridden in unit tests
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @NonNull
+    private MessageDigest getDigest() throws SSLException {
+        MessageDigest md = digest.get();
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new SSLException(e);
+            }
+            digest.set(md);
+        }
+        return md;
+    }
+
+    @NonNull
+    private static String getChainMessage(@NonNull List<X509Certificate> chain, @NonNull MessageDigest md) {
+        StringBuilder certChainMsg = new StringBuilder();
+        for (Certificate cert : chain) {
+            String pin = Base64.encodeToString(md.digest(cert.getPublicKey().getEncoded()), Base64.NO_WRAP);
+            certChainMsg.append("    sha256/")
+                    .append(pin).append(" : ")
+                    .append(cert.getPublicKey().toString())
+                    .append("\n");
+        }
+        return certChainMsg.toString();
     }
 
     @NonNull
-    private List<X509Certificate> trustedChain(@NonNull HttpsURLConnection conn)
+    private List<X509Certificate> trustedChain(@NonNull Certificate[] serverCerts, @NonNull String host)
             throws SSLException {
 
-        Certificate[] serverCerts = conn.getServerCertificates();
         X509Certificate[] untrustedCerts = Arrays.copyOf(serverCerts, serverCerts.length,
                 X509Certificate[].class);
-        String host = conn.getURL().getHost();
 
         try {
             return trustChecker.checkServerTrusted(untrustedCerts, "RSA", host);
@@ -146,6 +243,16 @@ public class PinConnectionValidator {
         return null;
     }
 
+    private static class ValidatedChain {
+        final Certificate[] certs;
+        final long expires;
+
+        ValidatedChain(Certificate[] certs, long expires) {
+            this.certs = certs;
+            this.expires = expires;
+        }
+    }
+
     interface TrustChecker {
         List<X509Certificate> checkServerTrusted(
                 X509Certificate[] chain,
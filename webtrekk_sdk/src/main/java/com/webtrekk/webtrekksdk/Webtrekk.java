@@ -663,7 +663,7 @@ public class Webtrekk implements ActivityListener.Callback {
      */
     public boolean send() {
         if (mRequestFactory.getTrackingConfiguration().getSendDelay() == 0) {
-            return mRequestFactory.onSendIntervalOver();
+            return mRequestFactory.onSendIntervalOver(true);
         }else {
             WebtrekkLogging.log("Custom url send mode isn't switched on. Send isn't available. For custom send mode set <sendDelay> to zero ");
             return false;